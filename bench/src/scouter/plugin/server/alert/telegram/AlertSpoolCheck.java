@@ -0,0 +1,322 @@
+/*
+ *  Copyright 2016 Scouter Project.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package scouter.plugin.server.alert.telegram;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import scouter.server.Configure;
+
+/**
+ * {@link AlertSpool} end to end against {@link MockTelegramServer} : messages spooled while the server is down
+ * are delivered exactly once after a restart, per destination, a torn record at the end of a segment is skipped,
+ * and acknowledged messages are not sent again. Then the size cap and the age cap of the spool on its own.
+ */
+class AlertSpoolCheck implements Checks.Check {
+
+    private static final int MESSAGES = 50;
+    private static final String TORN = "torn record";
+
+    private final Map<String, AtomicInteger> received = new ConcurrentHashMap<String, AtomicInteger>();
+
+    /**
+     * The spool, the sender and the http client wired as TelegramPlugin does, a restart builds a new one.
+     */
+    private static class Pipeline {
+        final TelegramHttpClient http = new TelegramHttpClient();
+        final TelegramSender sender = new TelegramSender(http, 2);
+        final AlertSpool spool;
+
+        Pipeline(File dir) throws IOException {
+            spool = new AlertSpool(dir, new AlertSpool.Delivery() {
+                @Override
+                public void deliver(String destination, String text, Runnable done) {
+                    sender.deliver(destination, text, done);
+                }
+            });
+            sender.setSpool(spool);
+            spool.start();
+        }
+
+        void send(String destination, String text) {
+            sender.send(TelegramPluginConfig.get().destination(destination), text);
+        }
+
+        void shutdown() {
+            spool.shutdown();
+            sender.shutdown(0);
+            http.close();
+        }
+    }
+
+    @Override
+    public void run(Checks checks) throws Exception {
+        replay(checks, directory("replay"));
+        maxBytes(checks, directory("max-bytes"));
+        maxAge(checks, directory("max-age"));
+    }
+
+    private void replay(Checks checks, File dir) throws Exception {
+        int port;
+        ServerSocket free = new ServerSocket(0);
+        try {
+            port = free.getLocalPort();
+        } finally {
+            free.close();
+        }
+
+        Configure.set("ext_plugin_telegram_api_url", "http://127.0.0.1:" + port);
+        Configure.set("ext_plugin_telegram_bot_token", "check");
+        Configure.set("ext_plugin_telegram_chat_id", "1");
+        Configure.set("ext_plugin_telegram_destinations", "slow");
+        Configure.set("ext_plugin_telegram_dest_slow_chat_id", "2");
+        Configure.set("ext_plugin_telegram_rate_per_min", 100000);
+        Configure.set("ext_plugin_telegram_rate_burst", 1000);
+        Configure.set("ext_plugin_telegram_http_connect_timeout_ms", 500);
+        Configure.set("ext_plugin_telegram_http_read_timeout_ms", 1000);
+        // retried until the shutdown, nothing is given up while the server is down
+        Configure.set("ext_plugin_telegram_retry_max_attempts", 100000);
+        Configure.set("ext_plugin_telegram_retry_backoff_ms", 50);
+        Configure.set("ext_plugin_telegram_retry_backoff_max_ms", 200);
+        Configure.set("ext_plugin_telegram_spool_segment_bytes", 1024);
+        TelegramPluginConfig.reload(Configure.getInstance(), true);
+
+        // 1. the server is down : everything stays in the spool
+        Pipeline pipeline = new Pipeline(dir);
+        for (int i = 0; i < MESSAGES; i++) {
+            pipeline.send(DestinationRouter.DEFAULT, "default #" + i);
+            pipeline.send("slow", "slow #" + i);
+        }
+        Thread.sleep(500);
+        pipeline.shutdown();
+        checks.check(pipeline.spool.getSegmentCount() > 1, "several segments spooled");
+        tear(dir);
+
+        MockTelegramServer server = new MockTelegramServer(port, new MockTelegramServer.Listener() {
+            @Override
+            public void received(String text) {
+                count(text);
+            }
+        });
+        server.start();
+        try {
+            // 2. the server is back, the slow destination gets one token a minute : only its lane lags behind
+            Configure.set("ext_plugin_telegram_dest_slow_rate_per_min", 1);
+            Configure.set("ext_plugin_telegram_dest_slow_rate_burst", 1);
+            TelegramPluginConfig.reload(Configure.getInstance(), true);
+            pipeline = new Pipeline(dir);
+            await("default #", MESSAGES, 10000);
+            Thread.sleep(300);
+            pipeline.shutdown();
+            checks.equal(MESSAGES, received("default #"), "default messages delivered after the restart");
+            checks.equal(1, received("slow #"), "slow messages delivered at one a minute");
+
+            // 3. restart : the slow lane is replayed from its own ack, the default lane is not replayed
+            Configure.set("ext_plugin_telegram_dest_slow_rate_per_min", 100000);
+            Configure.set("ext_plugin_telegram_dest_slow_rate_burst", 1000);
+            TelegramPluginConfig.reload(Configure.getInstance(), true);
+            pipeline = new Pipeline(dir);
+            await("slow #", MESSAGES, 10000);
+            Thread.sleep(300);
+            pipeline.shutdown();
+            for (int i = 0; i < MESSAGES; i++) {
+                checks.equal(1, count("default #" + i, 0), "default #" + i + " delivered once");
+                checks.equal(1, count("slow #" + i, 0), "slow #" + i + " delivered once");
+            }
+            checks.equal(0, count(TORN, 0), "torn record delivered");
+
+            // 4. restart : nothing is left to replay and the delivered segments are deleted
+            int total = received("");
+            pipeline = new Pipeline(dir);
+            Thread.sleep(500);
+            checks.equal(total, received(""), "messages replayed after everything was acknowledged");
+            checks.equal(1, pipeline.spool.getSegmentCount(), "segments left (the one being written)");
+            checks.equal(0L, pipeline.spool.getPendingBytes(), "pending bytes");
+            pipeline.shutdown();
+        } finally {
+            server.stop();
+            delete(dir);
+        }
+    }
+
+    /**
+     * Oldest segments are dropped over the size cap, the newest messages are still delivered in order.
+     */
+    private void maxBytes(Checks checks, File dir) throws Exception {
+        Configure.set("ext_plugin_telegram_spool_segment_bytes", 200);
+        Configure.set("ext_plugin_telegram_spool_max_bytes", 1000);
+        TelegramPluginConfig.reload(Configure.getInstance(), true);
+
+        try {
+            // nothing is acknowledged
+            AlertSpool spool = new AlertSpool(dir, new Recorder(false));
+            spool.start();
+            for (int i = 0; i < 100; i++) {
+                spool.append(DestinationRouter.DEFAULT, "r" + i);
+            }
+            checks.check(spool.getDroppedSegments() > 0, "segments dropped over the size cap");
+            checks.check(spool.getPendingBytes() <= 1000, "spool within the size cap : " + spool.getPendingBytes());
+            spool.shutdown();
+
+            Recorder recorder = new Recorder(true);
+            spool = new AlertSpool(dir, recorder);
+            spool.start();
+            Thread.sleep(500);
+            spool.shutdown();
+
+            List<String> texts = recorder.texts;
+            checks.check(!texts.isEmpty() && texts.size() < 100, "newest messages replayed : " + texts.size());
+            checks.check(!texts.contains("r0"), "oldest message dropped");
+            boolean ordered = !texts.isEmpty() && "r99".equals(texts.get(texts.size() - 1));
+            for (int i = 1; i < texts.size(); i++) {
+                ordered &= Integer.parseInt(texts.get(i).substring(1)) == Integer.parseInt(texts.get(i - 1).substring(1)) + 1;
+            }
+            checks.check(ordered, "replayed in order up to the last one : " + texts);
+        } finally {
+            delete(dir);
+        }
+    }
+
+    /**
+     * Messages older than the age cap are acknowledged without being delivered.
+     */
+    private void maxAge(Checks checks, File dir) throws Exception {
+        Configure.set("ext_plugin_telegram_spool_max_age_ms", 200);
+        TelegramPluginConfig.reload(Configure.getInstance(), true);
+
+        try {
+            AlertSpool spool = new AlertSpool(dir, new Recorder(false));
+            spool.start();
+            for (int i = 0; i < 10; i++) {
+                spool.append(DestinationRouter.DEFAULT, "r" + i);
+            }
+            Thread.sleep(100);
+            spool.shutdown();
+            Thread.sleep(300);
+
+            Recorder recorder = new Recorder(true);
+            spool = new AlertSpool(dir, recorder);
+            spool.start();
+            Thread.sleep(500);
+            checks.equal(Collections.<String>emptyList(), recorder.texts, "expired messages delivered");
+            checks.equal(10L, spool.getExpiredCount(), "expired messages");
+            checks.equal(0L, spool.getPendingBytes(), "pending bytes after the expiry");
+            spool.shutdown();
+        } finally {
+            delete(dir);
+        }
+    }
+
+    private static class Recorder implements AlertSpool.Delivery {
+        final List<String> texts = Collections.synchronizedList(new ArrayList<String>());
+        final boolean acknowledge;
+
+        Recorder(boolean acknowledge) {
+            this.acknowledge = acknowledge;
+        }
+
+        @Override
+        public void deliver(String destination, String text, Runnable done) {
+            if (acknowledge) {
+                texts.add(text);
+                done.run();
+            }
+        }
+    }
+
+    /**
+     * Append the first half of a record to the newest segment, as a crash in the middle of a write leaves it.
+     */
+    private static void tear(File dir) throws IOException {
+        File[] segments = dir.listFiles();
+        Arrays.sort(segments);
+        File last = null;
+        for (File f : segments) {
+            if (f.getName().endsWith(".spool") && f.length() > 0) {
+                last = f;
+            }
+        }
+
+        byte[] data = (DestinationRouter.DEFAULT + '\u0000' + TORN).getBytes("UTF-8");
+        ByteBuffer record = ByteBuffer.allocate(16 + data.length);
+        record.putInt(data.length).putInt(0).putLong(System.currentTimeMillis()).put(data);
+        FileOutputStream out = new FileOutputStream(last, true);
+        try {
+            out.write(record.array(), 0, 16 + data.length / 2);
+        } finally {
+            out.close();
+        }
+    }
+
+    private void count(String text) {
+        AtomicInteger n = received.get(text);
+        if (n == null) {
+            received.putIfAbsent(text, new AtomicInteger());
+            n = received.get(text);
+        }
+        n.incrementAndGet();
+    }
+
+    private int count(String text, int def) {
+        AtomicInteger n = received.get(text);
+        return n == null ? def : n.get();
+    }
+
+    private int received(String prefix) {
+        int total = 0;
+        for (Map.Entry<String, AtomicInteger> e : received.entrySet()) {
+            if (e.getKey().startsWith(prefix)) {
+                total += e.getValue().get();
+            }
+        }
+        return total;
+    }
+
+    private void await(String prefix, int count, long timeoutMillis) throws InterruptedException {
+        long until = System.currentTimeMillis() + timeoutMillis;
+        while (received(prefix) < count && System.currentTimeMillis() < until) {
+            Thread.sleep(20);
+        }
+    }
+
+    private static File directory(String name) throws IOException {
+        File dir = new File(System.getProperty("java.io.tmpdir"), "telegram-spool-check-" + name + "-" + System.nanoTime());
+        if (!dir.mkdirs()) {
+            throw new IOException("can not create " + dir);
+        }
+        return dir;
+    }
+
+    private static void delete(File dir) {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                f.delete();
+            }
+        }
+        dir.delete();
+    }
+}
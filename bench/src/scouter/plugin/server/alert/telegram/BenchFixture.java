@@ -0,0 +1,125 @@
+/*
+ *  Copyright 2016 Scouter Project.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package scouter.plugin.server.alert.telegram;
+
+import java.lang.reflect.Field;
+import java.util.concurrent.atomic.LongAdder;
+
+import scouter.lang.pack.ObjectPack;
+import scouter.server.Configure;
+import scouter.server.core.AgentManager;
+import scouter.util.HashUtil;
+
+/**
+ * Shared setup of the benchmarks : a plugin configuration close to a production scouter.conf and a set of registered agents.
+ * Alerts are enabled, so every alert goes through the filters, the dispatcher and the rendering as in production.
+ * The benchmarks replace the sender with one which drops the messages ({@link #pluginWithoutDelivery()}),
+ * so they measure the cost inside the collector and not the network.
+ */
+final class BenchFixture {
+
+    static final int AGENT_COUNT = 64;
+
+    /** Ignore patterns of the README example. */
+    static final String IGNORE_TITLE_PATTERNS = "Elapsed,CONNECTION,activat*";
+    static final String IGNORE_MESSAGE_PATTERNS = "/theme/cheiljedang/summary/dashboard*,/common/bridge*,"
+            + "/theme/cheiljedang/main/addMember*,*/errorPage/page_not_found*,*warning slow sql*,*UserHandleException*";
+
+    private static TelegramPlugin plugin;
+    private static int[] objHashes;
+
+    private BenchFixture() {
+    }
+
+    static synchronized TelegramPlugin plugin() {
+        if (plugin == null) {
+            Configure.set("ext_plugin_telegram_send_alert", true);
+            Configure.set("ext_plugin_telegram_bot_token", "0:bench");
+            Configure.set("ext_plugin_telegram_chat_id", "0");
+            Configure.set("ext_plugin_telegram_api_url", "http://127.0.0.1:9");
+            Configure.set("ext_plugin_exception_xlog_telegram_enabled", true);
+            Configure.set("ext_plugin_exception_xlog_groups", "prd,dev");
+            Configure.set("ext_plugin_exception_xlog_prd_agents", "/prd*");
+            Configure.set("ext_plugin_exception_xlog_prd_telegram_enabled", true);
+            Configure.set("ext_plugin_exception_xlog_dev_agents", "/dev*");
+            Configure.set("ext_plugin_elapsed_time_threshold", 5000);
+            Configure.set("ext_plugin_heap_used_threshold", 2048);
+            Configure.set("ext_plugin_gc_time_threshold", 3000);
+            Configure.set("ext_plugin_thread_count_threshold", 300);
+            Configure.set("ext_plugin_thread_count_poll_interval_ms", 3600000);
+            Configure.set("ext_plugin_ignore_telegram_title_patterns", IGNORE_TITLE_PATTERNS);
+            Configure.set("ext_plugin_ignore_telegram_message_patterns", IGNORE_MESSAGE_PATTERNS);
+
+            objHashes = new int[AGENT_COUNT];
+            for (int i = 0; i < AGENT_COUNT; i++) {
+                ObjectPack pack = new ObjectPack();
+                pack.objName = (i % 2 == 0 ? "/prdwas" : "/devwas") + (i / 2) + "/tomcat" + i;
+                pack.objHash = HashUtil.hash(pack.objName);
+                pack.objType = "tomcat";
+                pack.alive = true;
+                AgentManager.register(pack);
+                objHashes[i] = pack.objHash;
+            }
+
+            plugin = new TelegramPlugin();
+        }
+        return plugin;
+    }
+
+    /**
+     * The plugin with a sender which drops the messages, for the benchmarks.
+     */
+    static synchronized TelegramPlugin pluginWithoutDelivery() {
+        TelegramPlugin plugin = plugin();
+        try {
+            Field field = TelegramPlugin.class.getDeclaredField("sender");
+            field.setAccessible(true);
+            if (!(field.get(null) instanceof NullSender)) {
+                TelegramSender sender = (TelegramSender) field.get(null);
+                field.set(null, new NullSender());
+                sender.shutdown(0);
+            }
+        } catch (Exception e) {
+            throw new IllegalStateException("can not replace the sender of the plugin", e);
+        }
+        return plugin;
+    }
+
+    /**
+     * Counts the messages instead of sending them.
+     */
+    static final class NullSender extends TelegramSender {
+        final LongAdder messages = new LongAdder();
+
+        NullSender() {
+            super(new TelegramHttpClient(), 1);
+        }
+
+        @Override
+        public void send(DestinationRouter.Destination d, String contents) {
+            messages.increment();
+        }
+    }
+
+    static int objHash(int i) {
+        plugin();
+        return objHashes[i % AGENT_COUNT];
+    }
+
+    static String objName(int i) {
+        return AgentManager.getAgentName(objHash(i));
+    }
+}
@@ -0,0 +1,80 @@
+/*
+ *  Copyright 2016 Scouter Project.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package scouter.plugin.server.alert.telegram;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import scouter.server.Configure;
+
+/**
+ * Offline behaviour checks of the plugin, run against the scouter server stand-ins in bench/src.
+ * Every check is a small program asserting one component, failures are printed and make the run fail.
+ * <pre>
+ * usage : Checks [check name ...]
+ * </pre>
+ */
+public class Checks {
+
+    public interface Check {
+        void run(Checks checks) throws Exception;
+    }
+
+    private final Map<String, Check> all = new LinkedHashMap<String, Check>();
+    private String current;
+    private int passed;
+    private int failed;
+
+    private Checks() {
+        all.put("WildcardMatcher", new WildcardMatcherCheck());
+        all.put("ThresholdEvaluator", new ThresholdEvaluatorCheck());
+        all.put("ElapsedBaselineTracker", new ElapsedBaselineTrackerCheck());
+        all.put("HostCorrelator", new HostCorrelatorCheck());
+        all.put("AlertSpool", new AlertSpoolCheck());
+    }
+
+    public static void main(String[] args) throws Exception {
+        Checks checks = new Checks();
+        List<String> names = Arrays.asList(args);
+        for (Map.Entry<String, Check> e : checks.all.entrySet()) {
+            if (names.isEmpty() || names.contains(e.getKey())) {
+                checks.current = e.getKey();
+                // every check starts from the default configuration
+                Configure.clear();
+                TelegramPluginConfig.reload(Configure.getInstance(), true);
+                e.getValue().run(checks);
+            }
+        }
+
+        System.out.println(checks.passed + " passed, " + checks.failed + " failed");
+        System.exit(checks.failed == 0 ? 0 : 1);
+    }
+
+    public void check(boolean ok, String what) {
+        if (ok) {
+            passed++;
+        } else {
+            failed++;
+            System.out.println("FAILED [" + current + "] " + what);
+        }
+    }
+
+    public void equal(Object expected, Object actual, String what) {
+        check(expected == null ? actual == null : expected.equals(actual), what + " : expected " + expected + ", was " + actual);
+    }
+}
@@ -0,0 +1,85 @@
+/*
+ *  Copyright 2016 Scouter Project.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package scouter.plugin.server.alert.telegram;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import scouter.lang.TimeTypeEnum;
+import scouter.lang.counters.CounterConstants;
+import scouter.lang.pack.PerfCounterPack;
+
+/**
+ * Cost of {@link TelegramPlugin#counter(PerfCounterPack)} per realtime counter pack of a javaee agent,
+ * below the thresholds and while breached.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CounterBenchmark {
+
+    private static final int PACK_COUNT = 256;
+
+    private TelegramPlugin plugin;
+    private PerfCounterPack[] normal;
+    private PerfCounterPack[] breached;
+    private int index;
+
+    @Setup
+    public void setup() {
+        plugin = BenchFixture.pluginWithoutDelivery();
+        normal = new PerfCounterPack[PACK_COUNT];
+        breached = new PerfCounterPack[PACK_COUNT];
+
+        for (int i = 0; i < PACK_COUNT; i++) {
+            normal[i] = pack(i, 1024, 100);
+            breached[i] = pack(i, 4096, 5000);
+        }
+    }
+
+    private static PerfCounterPack pack(int i, long heapUsed, long gcTime) {
+        PerfCounterPack pack = new PerfCounterPack();
+        pack.objName = BenchFixture.objName(i);
+        pack.time = System.currentTimeMillis();
+        pack.timetype = TimeTypeEnum.REALTIME;
+        pack.put(CounterConstants.JAVA_HEAP_USED, heapUsed);
+        pack.put(CounterConstants.JAVA_GC_TIME, gcTime);
+        return pack;
+    }
+
+    @Benchmark
+    public void normal() {
+        plugin.counter(normal[index++ & (PACK_COUNT - 1)]);
+    }
+
+    @Benchmark
+    public void breached() {
+        plugin.counter(breached[index++ & (PACK_COUNT - 1)]);
+    }
+}
@@ -0,0 +1,75 @@
+/*
+ *  Copyright 2016 Scouter Project.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package scouter.plugin.server.alert.telegram;
+
+import scouter.server.Configure;
+
+/**
+ * {@link ElapsedBaselineTracker} transitions, and that a breached service recovers when its traffic drops.
+ */
+class ElapsedBaselineTrackerCheck implements Checks.Check {
+
+    private static final long WINDOW = 1000;
+
+    @Override
+    public void run(Checks checks) {
+        Configure.set("ext_plugin_elapsed_baseline_window_ms", WINDOW);
+        Configure.set("ext_plugin_elapsed_baseline_min_samples", 50);
+        TelegramPluginConfig.reload(Configure.getInstance(), true);
+        TelegramPluginConfig c = TelegramPluginConfig.get();
+
+        ElapsedBaselineTracker t = new ElapsedBaselineTracker();
+        long time = 0;
+        for (int i = 0; i <= ElapsedBaselineTracker.WARMUP_WINDOWS; i++, time += WINDOW) {
+            checks.equal(null, window(t, time, 60, 100, c), "warmup window " + i);
+        }
+
+        // slow with enough samples
+        checks.equal(null, window(t, time, 60, 1000, c), "slow window");
+        time += WINDOW;
+        ElapsedBaselineTracker.Deviation d = window(t, time, 5, 1000, c);
+        checks.check(d != null && d.raised, "raised when the slow window is closed");
+        time += WINDOW;
+
+        // the traffic drops with the slowness : a few samples are enough to clear, not to raise
+        checks.equal(null, window(t, time, 5, 100, c), "few slow samples keep the breach");
+        time += WINDOW;
+        d = window(t, time, 5, 5000, c);
+        checks.check(d != null && !d.raised, "cleared by a window with few samples");
+        checks.equal(5, d == null ? -1 : d.samples, "samples of the recovery");
+        time += WINDOW;
+        checks.equal(null, window(t, time, 60, 100, c), "few slow samples do not raise");
+        time += WINDOW;
+        checks.equal(null, window(t, time, 1, 100, c), "back to normal");
+    }
+
+    /**
+     * Record a window of xlogs, which closes the previous one.
+     *
+     * @return the deviation of the previous window
+     */
+    private static ElapsedBaselineTracker.Deviation window(ElapsedBaselineTracker t, long time, int count, int elapsed,
+            TelegramPluginConfig c) {
+        ElapsedBaselineTracker.Deviation first = null;
+        for (int i = 0; i < count; i++) {
+            ElapsedBaselineTracker.Deviation d = t.record(1, 1, elapsed, time + i, c);
+            if (i == 0) {
+                first = d;
+            }
+        }
+        return first;
+    }
+}
@@ -0,0 +1,143 @@
+/*
+ *  Copyright 2016 Scouter Project.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package scouter.plugin.server.alert.telegram;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import scouter.lang.AlertLevel;
+import scouter.lang.pack.AlertPack;
+
+/**
+ * {@link HostCorrelator} grouping, flapping raised and cleared within the flap window,
+ * and the doubling interval of its reminders which starts over with the next flapping.
+ */
+class HostCorrelatorCheck implements Checks.Check {
+
+    private static final long SETTLE = 1000;
+    private static final int FLAP_COUNT = 3;
+    private static final long FLAP_WINDOW = 10000;
+
+    private final List<AlertPack> sent = new ArrayList<AlertPack>();
+    private final List<Long> sentAt = new ArrayList<Long>();
+    private long now;
+
+    @Override
+    public void run(Checks checks) {
+        HostCorrelator h = new HostCorrelator(new HostCorrelator.Listener() {
+            public void correlated(AlertPack pack) {
+                sent.add(pack);
+                sentAt.add(now);
+            }
+        });
+
+        // a group of two objects within the settle window, then a group of one
+        h.add("web01", "/web01/tomcat1", pack(1, "INACTIVATED"), true, 0);
+        h.add("web01", "/web01/tomcat2", pack(2, "INACTIVATED"), true, 200);
+        flushUntil(h, 500);
+        checks.equal(0, sent.size(), "held within the settle window");
+        flushUntil(h, 1000);
+        checks.equal(1, sent.size(), "one alert for the group");
+        checks.equal(HostCorrelator.INACTIVATED_TITLE, title(0), "title of the group");
+        checks.check(sent.get(0).message.contains("2 objects inactive (tomcat1, tomcat2)"), "objects of the group : " + sent.get(0).message);
+
+        change(h, 2000, false);
+        checks.equal(2, sent.size(), "a group of one");
+        checks.equal("ACTIVATED", title(1), "a group of one is the original alert");
+
+        // the third change within the flap window raises
+        change(h, 4000, true);
+        checks.equal(3, sent.size(), "flapping alert");
+        checks.equal(HostCorrelator.FLAPPING_TITLE, title(2), "flapping raised");
+        checks.equal(5000L, sentAt.get(2), "flapping raised when the third group closes");
+
+        // a change every 5 s keeps it flapping, the reminders come at 10, 20 and 40 s
+        for (long t = 10000; t <= 80000; t += 5000) {
+            change(h, t, t % 10000 == 0);
+        }
+        checks.equal(reminders(5000, 10000, 20000, 40000), flappingSince(3), "reminders at doubling intervals");
+
+        // quiet for the flap window clears it
+        int before = sent.size();
+        flushUntil(h, 90000);
+        checks.equal(before, sent.size(), "still flapping before the window is over");
+        flushUntil(h, 91000);
+        checks.equal(before + 1, sent.size(), "stable alert");
+        checks.equal(HostCorrelator.STABLE_TITLE, title(sent.size() - 1), "flapping cleared");
+        checks.check(sent.get(sent.size() - 1).message.contains(", 15 change(s) held back."),
+                "held back changes : " + sent.get(sent.size() - 1).message);
+        checks.equal(0, h.size(), "a stable host is forgotten");
+
+        // flapping again starts the reminders from the flap window
+        before = sent.size();
+        for (long t = 100000; t <= 140000; t += 2000) {
+            change(h, t, t % 4000 == 0);
+        }
+        checks.equal("INACTIVATED", title(before), "first change of a forgotten host");
+        checks.equal("ACTIVATED", title(before + 1), "second change of a forgotten host");
+        checks.equal(HostCorrelator.FLAPPING_TITLE, title(before + 2), "flapping raised again");
+        checks.equal(105000L, sentAt.get(before + 2), "raised with the third group again");
+        checks.equal(reminders(105000, 10000, 20000), flappingSince(before + 3), "reminders start over");
+    }
+
+    private void change(HostCorrelator h, long time, boolean down) {
+        flushUntil(h, time);
+        h.add("web01", "/web01/tomcat1", pack(1, down ? "INACTIVATED" : "ACTIVATED"), down, time);
+        flushUntil(h, time + SETTLE);
+    }
+
+    /** flush every 500 ms up to the time */
+    private void flushUntil(HostCorrelator h, long time) {
+        for (now = Math.max(now, time - 60000); now <= time; now += 500) {
+            h.flush(now, SETTLE, FLAP_COUNT, FLAP_WINDOW);
+        }
+        now = time;
+    }
+
+    private String title(int i) {
+        return sent.get(i).title;
+    }
+
+    private static List<Long> reminders(long raisedAt, long... backoffs) {
+        List<Long> times = new ArrayList<Long>();
+        long t = raisedAt;
+        for (long b : backoffs) {
+            t += b;
+            times.add(t);
+        }
+        return times;
+    }
+
+    private List<Long> flappingSince(int from) {
+        List<Long> times = new ArrayList<Long>();
+        for (int i = from; i < sent.size(); i++) {
+            if (HostCorrelator.FLAPPING_TITLE.equals(title(i))) {
+                times.add(sentAt.get(i));
+            }
+        }
+        return times;
+    }
+
+    private static AlertPack pack(int objHash, String title) {
+        AlertPack ap = new AlertPack();
+        ap.level = AlertLevel.FATAL;
+        ap.objHash = objHash;
+        ap.objType = "tomcat";
+        ap.title = title;
+        ap.message = title;
+        return ap;
+    }
+}
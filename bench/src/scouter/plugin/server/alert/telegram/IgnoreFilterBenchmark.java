@@ -0,0 +1,74 @@
+/*
+ *  Copyright 2016 Scouter Project.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package scouter.plugin.server.alert.telegram;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Ignore pattern filtering of an alert message against the README pattern list,
+ * compared with the former per-call String.matches of every pattern.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class IgnoreFilterBenchmark {
+
+    @Param({ "/order/list.do - java.lang.NullPointerException",
+             "/common/bridge/main.do - java.lang.IllegalStateException",
+             "[/prdwas1/tomcat1] 1234(/order/save.do) warning slow sql : 8000 ms" })
+    public String message;
+
+    private WildcardMatcher matcher;
+    private String[] patterns;
+
+    @Setup
+    public void setup() {
+        matcher = WildcardMatcher.compile(BenchFixture.IGNORE_MESSAGE_PATTERNS);
+        patterns = BenchFixture.IGNORE_MESSAGE_PATTERNS.split(",");
+    }
+
+    @Benchmark
+    public boolean compiled() {
+        return matcher.matches(message);
+    }
+
+    @Benchmark
+    public boolean perCallRegex() {
+        for (String pattern : patterns) {
+            if (message.matches(pattern.replaceAll("\\*", ".*")
+                    .replaceAll("\\(", "\\\\(").replaceAll("\\)", "\\\\)")
+                    .replaceAll("\\[", "\\\\[").replaceAll("\\]", "\\\\]"))) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,241 @@
+/*
+ *  Copyright 2016 Scouter Project.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package scouter.plugin.server.alert.telegram;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import scouter.lang.AlertLevel;
+import scouter.lang.TimeTypeEnum;
+import scouter.lang.counters.CounterConstants;
+import scouter.lang.pack.AlertPack;
+import scouter.lang.pack.PerfCounterPack;
+import scouter.lang.pack.XLogPack;
+import scouter.server.Configure;
+
+/**
+ * End-to-end load test of the plugin against {@link MockTelegramServer}.
+ * Synthetic AlertPack, XLogPack and PerfCounterPack streams are replayed into the plugin entry points
+ * under each failure mode of the mock server. For every alert which carries a marker (AlertPack and xlog errors)
+ * it reports the delivered rate, the generation to delivery latency percentiles and the loss.
+ * <pre>
+ * usage : LoadTest [seconds per scenario] [alerts/s] [xlogs/s] [xlog error %] [spool] [async]
+ * </pre>
+ */
+public class LoadTest {
+
+    private static final Pattern ALERT_MARKER = Pattern.compile("loadtest #(\\d+)");
+    private static final Pattern XLOG_MARKER = Pattern.compile("/service/([0-9a-f]+)\\.do");
+    private static final int XLOG_SEQ_BASE = 1 << 30;
+    private static final int READ_TIMEOUT = 1000;
+
+    private final Map<Integer, Long> generatedAt = new ConcurrentHashMap<Integer, Long>();
+    private final Map<Integer, Boolean> delivered = new ConcurrentHashMap<Integer, Boolean>();
+    private final AtomicLong duplicates = new AtomicLong();
+    private final AtomicLong untracked = new AtomicLong();
+    private final AtomicLong lastDelivery = new AtomicLong();
+    private volatile LatencyHistogram latency = new LatencyHistogram();
+
+    private int alertSeq;
+    private int xlogSeq = XLOG_SEQ_BASE;
+
+    public static void main(String[] args) throws Exception {
+        int seconds = args.length > 0 ? Integer.parseInt(args[0]) : 10;
+        int alertsPerSec = args.length > 1 ? Integer.parseInt(args[1]) : 100;
+        int xlogsPerSec = args.length > 2 ? Integer.parseInt(args[2]) : 5000;
+        int errorPercent = args.length > 3 ? Integer.parseInt(args[3]) : 1;
+        boolean spool = false;
+        boolean async = false;
+        for (int i = 4; i < args.length; i++) {
+            spool |= "spool".equals(args[i]);
+            async |= "async".equals(args[i]);
+        }
+
+        new LoadTest().run(seconds, alertsPerSec, xlogsPerSec, errorPercent, spool, async);
+        System.exit(0);
+    }
+
+    private void run(int seconds, int alertsPerSec, int xlogsPerSec, int errorPercent, boolean spool, boolean async) throws Exception {
+        MockTelegramServer server = new MockTelegramServer(0, new MockTelegramServer.Listener() {
+            @Override
+            public void received(String text) {
+                LoadTest.this.received(text);
+            }
+        });
+        server.timeoutMillis = READ_TIMEOUT * 2;
+        server.start();
+
+        // read by the plugin constructor
+        Configure.set("ext_plugin_telegram_worker_count", 4);
+        Configure.set("ext_plugin_telegram_queue_size", 1000);
+        Configure.set("ext_plugin_telegram_spool_enabled", spool);
+        TelegramPlugin plugin = BenchFixture.plugin();
+
+        Configure.set("ext_plugin_telegram_send_alert", true);
+        Configure.set("ext_plugin_telegram_api_url", server.getUrl());
+        Configure.set("ext_plugin_telegram_rate_per_min", Integer.MAX_VALUE / 2);
+        Configure.set("ext_plugin_telegram_rate_burst", 1000);
+        Configure.set("ext_plugin_telegram_http_read_timeout_ms", READ_TIMEOUT);
+        Configure.set("ext_plugin_telegram_retry_backoff_ms", 200);
+        Configure.set("ext_plugin_telegram_retry_backoff_max_ms", 2000);
+        Configure.set("ext_plugin_telegram_delivery_mode", async ? "async" : "sync");
+        // a single chat is loaded, so let it use the in-flight limit
+        Configure.set("ext_plugin_telegram_async_in_flight_per_chat", 16);
+        Configure.set("ext_plugin_ignore_telegram_title_patterns", "");
+        Configure.set("ext_plugin_ignore_telegram_message_patterns", "");
+        // the scenarios read and reset the metrics themselves
+        Configure.set("ext_plugin_telegram_metrics_interval_ms", 0);
+        TelegramPluginConfig.reload(Configure.getInstance(), true);
+
+        System.out.println("seconds=" + seconds + " alerts/s=" + alertsPerSec + " xlogs/s=" + xlogsPerSec
+                + " xlog error %=" + errorPercent + " spool=" + spool + " async=" + async + " mock=" + server.getUrl());
+        System.out.println(String.format("%-9s %9s %9s %7s %6s %9s %7s %7s %7s %7s %9s",
+                "scenario", "generated", "delivered", "lost", "dup", "alerts/s", "p50", "p95", "p99", "max", "untracked"));
+
+        String[] scenarios = { "normal", "latency", "throttle", "error", "timeout" };
+        for (String scenario : scenarios) {
+            server.reset();
+            server.latencyMillis = 20;
+            if ("latency".equals(scenario)) {
+                server.latencyMillis = 300;
+            } else if ("throttle".equals(scenario)) {
+                server.throttlePercent = 5;
+            } else if ("error".equals(scenario)) {
+                server.errorPercent = 10;
+            } else if ("timeout".equals(scenario)) {
+                server.timeoutPercent = 2;
+            }
+            runScenario(plugin, scenario, seconds, alertsPerSec, xlogsPerSec, errorPercent);
+            System.out.println("          " + PluginMetrics.get().report(null, null, null));
+        }
+
+        server.stop();
+    }
+
+    private void runScenario(TelegramPlugin plugin, String scenario, int seconds, int alertsPerSec, int xlogsPerSec,
+                             int errorPercent) throws InterruptedException {
+        generatedAt.clear();
+        delivered.clear();
+        duplicates.set(0);
+        untracked.set(0);
+        latency = new LatencyHistogram();
+        PluginMetrics.get().report(null, null, null);
+
+        long start = System.currentTimeMillis();
+        long end = start + seconds * 1000L;
+        long alerts = 0;
+        long xlogs = 0;
+        long counterSecond = -1;
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+
+        long now;
+        while ((now = System.currentTimeMillis()) < end) {
+            for (; alerts < alertsPerSec * (now - start) / 1000; alerts++) {
+                int seq = ++alertSeq;
+                AlertPack ap = new AlertPack();
+                ap.level = AlertLevel.WARN;
+                ap.objHash = BenchFixture.objHash(seq);
+                ap.objType = "tomcat";
+                ap.title = "Load test alert";
+                ap.message = "loadtest #" + seq;
+                ap.time = System.currentTimeMillis();
+                generatedAt.put(seq, System.nanoTime());
+                plugin.alert(ap);
+            }
+
+            for (; xlogs < xlogsPerSec * (now - start) / 1000; xlogs++) {
+                XLogPack xp = new XLogPack();
+                // even agents belong to the enabled xlog group of BenchFixture
+                xp.objHash = BenchFixture.objHash(random.nextInt(BenchFixture.AGENT_COUNT / 2) * 2);
+                xp.endTime = System.currentTimeMillis();
+                xp.elapsed = 100 + random.nextInt(500);
+                if (random.nextInt(100) < errorPercent) {
+                    int seq = ++xlogSeq;
+                    xp.service = seq;
+                    xp.error = 1000 + random.nextInt(20);
+                    generatedAt.put(seq, System.nanoTime());
+                } else {
+                    xp.service = random.nextInt(500);
+                }
+                plugin.xlog(xp);
+            }
+
+            // every agent reports its realtime counters once a second
+            if ((now - start) / 1000 != counterSecond) {
+                counterSecond = (now - start) / 1000;
+                for (int i = 0; i < BenchFixture.AGENT_COUNT; i++) {
+                    PerfCounterPack pc = new PerfCounterPack();
+                    pc.objName = BenchFixture.objName(i);
+                    pc.time = System.currentTimeMillis();
+                    pc.timetype = TimeTypeEnum.REALTIME;
+                    pc.put(CounterConstants.JAVA_HEAP_USED, 512 + random.nextInt(1024));
+                    pc.put(CounterConstants.JAVA_GC_TIME, random.nextInt(100));
+                    plugin.counter(pc);
+                }
+            }
+
+            Thread.sleep(5);
+        }
+
+        // wait for retries and backlogs to drain : until everything arrived or nothing arrived for a while
+        long quietSince = System.currentTimeMillis();
+        int seen = -1;
+        while (delivered.size() < generatedAt.size() && System.currentTimeMillis() - quietSince < 10000) {
+            Thread.sleep(200);
+            if (delivered.size() != seen) {
+                seen = delivered.size();
+                quietSince = System.currentTimeMillis();
+            }
+        }
+
+        int generated = generatedAt.size();
+        int arrived = delivered.size();
+        double elapsedSec = Math.max(1, lastDelivery.get() - start) / 1000.0;
+        LatencyHistogram.Snapshot s = latency.snapshotAndReset();
+        System.out.println(String.format("%-9s %9d %9d %7d %6d %9.1f %7d %7d %7d %7d %9d",
+                scenario, generated, arrived, generated - arrived, duplicates.get(), arrived / elapsedSec,
+                s.percentile(50), s.percentile(95), s.percentile(99), s.max, untracked.get()));
+    }
+
+    private void received(String text) {
+        Integer seq = null;
+        Matcher m = ALERT_MARKER.matcher(text);
+        if (m.find()) {
+            seq = Integer.valueOf(m.group(1));
+        } else {
+            m = XLOG_MARKER.matcher(text);
+            if (m.find()) {
+                seq = (int) Long.parseLong(m.group(1), 16);
+            }
+        }
+
+        Long at = seq == null ? null : generatedAt.get(seq);
+        if (at == null) {
+            untracked.incrementAndGet();
+            return;
+        }
+        if (delivered.put(seq, Boolean.TRUE) != null) {
+            duplicates.incrementAndGet();
+            return;
+        }
+        latency.record((System.nanoTime() - at) / 1000000L);
+        lastDelivery.set(System.currentTimeMillis());
+    }
+}
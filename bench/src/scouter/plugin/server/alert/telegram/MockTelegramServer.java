@@ -0,0 +1,155 @@
+/*
+ *  Copyright 2016 Scouter Project.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package scouter.plugin.server.alert.telegram;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Embedded stand-in of the telegram bot api sendMessage method.
+ * Latency, 429 Too Many Requests (with retry_after), 5xx errors and timeouts are injected by percentage.
+ */
+public class MockTelegramServer {
+
+    public interface Listener {
+        void received(String text);
+    }
+
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final Listener listener;
+    private final JsonParser parser = new JsonParser();
+
+    public volatile long latencyMillis;
+    public volatile int throttlePercent;
+    public volatile int retryAfterSeconds = 1;
+    public volatile int errorPercent;
+    public volatile int timeoutPercent;
+    public volatile long timeoutMillis = 10000;
+
+    public final AtomicLong requests = new AtomicLong();
+    public final AtomicLong throttled = new AtomicLong();
+    public final AtomicLong errors = new AtomicLong();
+    public final AtomicLong timeouts = new AtomicLong();
+
+    public MockTelegramServer(int port, Listener listener) throws IOException {
+        // otherwise Nagle's algorithm adds a delayed ack to every response
+        System.setProperty("sun.net.httpserver.nodelay", "true");
+        this.listener = listener;
+        this.server = HttpServer.create(new InetSocketAddress("127.0.0.1", port), 128);
+        this.executor = Executors.newFixedThreadPool(64, new AlertDispatcher.DaemonThreadFactory("mock-telegram"));
+        this.server.setExecutor(executor);
+        this.server.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                try {
+                    answer(exchange);
+                } finally {
+                    exchange.close();
+                }
+            }
+        });
+    }
+
+    public void start() {
+        server.start();
+    }
+
+    public void stop() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    public String getUrl() {
+        return "http://127.0.0.1:" + server.getAddress().getPort();
+    }
+
+    public void reset() {
+        latencyMillis = 0;
+        throttlePercent = 0;
+        errorPercent = 0;
+        timeoutPercent = 0;
+    }
+
+    private void answer(HttpExchange exchange) throws IOException {
+        String body = read(exchange.getRequestBody());
+        requests.incrementAndGet();
+
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        try {
+            if (timeoutPercent > 0 && random.nextInt(100) < timeoutPercent) {
+                timeouts.incrementAndGet();
+                Thread.sleep(timeoutMillis);
+            } else if (latencyMillis > 0) {
+                Thread.sleep(latencyMillis);
+            }
+        } catch (InterruptedException e) {
+            return;
+        }
+
+        if (throttlePercent > 0 && random.nextInt(100) < throttlePercent) {
+            throttled.incrementAndGet();
+            write(exchange, 429, "{\"ok\":false,\"error_code\":429,\"description\":\"Too Many Requests: retry after "
+                    + retryAfterSeconds + "\",\"parameters\":{\"retry_after\":" + retryAfterSeconds + "}}");
+            return;
+        }
+        if (errorPercent > 0 && random.nextInt(100) < errorPercent) {
+            errors.incrementAndGet();
+            write(exchange, 502, "{\"ok\":false,\"error_code\":502,\"description\":\"Bad Gateway\"}");
+            return;
+        }
+
+        JsonObject message = parser.parse(body).getAsJsonObject();
+        write(exchange, 200, "{\"ok\":true,\"result\":{\"message_id\":1}}");
+        JsonElement text = message.get("text");
+        if (text != null && !text.isJsonNull()) {
+            listener.received(text.getAsString());
+        }
+    }
+
+    private static String read(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buf = new byte[4096];
+        int n;
+        while ((n = in.read(buf)) > 0) {
+            out.write(buf, 0, n);
+        }
+        return new String(out.toByteArray(), "UTF-8");
+    }
+
+    private static void write(HttpExchange exchange, int status, String body) throws IOException {
+        byte[] bytes = body.getBytes("UTF-8");
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(status, bytes.length);
+        OutputStream out = exchange.getResponseBody();
+        out.write(bytes);
+        out.close();
+    }
+}
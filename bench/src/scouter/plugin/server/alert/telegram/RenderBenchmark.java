@@ -0,0 +1,107 @@
+/*
+ *  Copyright 2016 Scouter Project.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package scouter.plugin.server.alert.telegram;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import org.apache.http.HttpEntity;
+
+import com.google.gson.Gson;
+import com.google.gson.annotations.SerializedName;
+
+import scouter.lang.AlertLevel;
+
+/**
+ * Rendering of an alert text and of a digest per parse mode, and json serialization of the request body
+ * compared with the former Gson instance per message.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RenderBenchmark {
+
+    /** request body of the former Gson serialization, the baseline of json() */
+    static class GsonMessage {
+        @SerializedName("chat_id")
+        final String chatId;
+        final String text;
+
+        GsonMessage(String chatId, String text) {
+            this.chatId = chatId;
+            this.text = text;
+        }
+    }
+
+    @Param({ "", "HTML", "MarkdownV2" })
+    public String parseMode;
+
+    private MessageTemplate template;
+    private AlertBatcher.Item item;
+    private List<AlertBatcher.Item> batch;
+    private String text;
+
+    @Setup
+    public void setup() {
+        template = MessageTemplate.compile(null, parseMode);
+        item = new AlertBatcher.Item(AlertLevel.ERROR, "tomcat", "/prdwas1/tomcat1", "xlog Error",
+                "/order/save.do - java.sql.SQLException: ORA-00001: unique constraint violated");
+        text = template.render(item);
+
+        batch = new ArrayList<AlertBatcher.Item>();
+        for (int i = 0; i < 50; i++) {
+            batch.add(new AlertBatcher.Item((byte) (i % 3), i % 2 == 0 ? "tomcat" : "host", "/prdwas" + (i % 5) + "/tomcat" + i,
+                    "xlog Error", "/order/list" + i + ".do - java.lang.NullPointerException"));
+        }
+    }
+
+    @Benchmark
+    public String text() {
+        return template.render(item);
+    }
+
+    @Benchmark
+    public String digest() {
+        return AlertBatcher.render(batch, AlertBatcher.TELEGRAM_TEXT_LIMIT, template);
+    }
+
+    @Benchmark
+    public HttpEntity json() throws IOException {
+        return MessageBody.write("-1001234567890", text, template.getParseMode()).entity();
+    }
+
+    @Benchmark
+    public String gsonPerCall() {
+        return new Gson().toJson(new GsonMessage("-1001234567890", text));
+    }
+}
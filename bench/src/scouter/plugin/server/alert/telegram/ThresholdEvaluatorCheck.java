@@ -0,0 +1,51 @@
+/*
+ *  Copyright 2016 Scouter Project.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package scouter.plugin.server.alert.telegram;
+
+/**
+ * {@link ThresholdEvaluator} transitions, and that a breached object always gets its recovery.
+ */
+class ThresholdEvaluatorCheck implements Checks.Check {
+
+    private static final int RAISE = 100;
+    private static final int CLEAR = 90;
+
+    @Override
+    public void run(Checks checks) {
+        ThresholdEvaluator e = new ThresholdEvaluator();
+
+        // 2 of 3
+        checks.equal(ThresholdEvaluator.NONE, e.evaluate(1, 150, RAISE, CLEAR, 2, 3), "one sample above");
+        checks.equal(ThresholdEvaluator.RAISED, e.evaluate(1, 150, RAISE, CLEAR, 2, 3), "two samples above");
+        checks.equal(ThresholdEvaluator.NONE, e.evaluate(1, 150, RAISE, CLEAR, 2, 3), "raised once");
+        checks.equal(ThresholdEvaluator.NONE, e.evaluate(1, 95, RAISE, CLEAR, 2, 3), "between clear and raise");
+        checks.equal(ThresholdEvaluator.NONE, e.evaluate(1, 50, RAISE, CLEAR, 2, 3), "one sample below");
+        checks.equal(ThresholdEvaluator.CLEARED, e.evaluate(1, 50, RAISE, CLEAR, 2, 3), "two samples below");
+
+        // the window is resized while the object is breached
+        e.evaluate(2, 150, RAISE, CLEAR, 1, 3);
+        checks.equal(ThresholdEvaluator.NONE, e.evaluate(2, 150, RAISE, CLEAR, 2, 5), "resized window keeps the breach");
+        checks.equal(ThresholdEvaluator.NONE, e.evaluate(2, 50, RAISE, CLEAR, 2, 5), "one sample below the resized window");
+        checks.equal(ThresholdEvaluator.CLEARED, e.evaluate(2, 50, RAISE, CLEAR, 2, 5), "recovery after the resize");
+
+        // the threshold is disabled while the object is breached
+        e.evaluate(3, 150, RAISE, CLEAR, 1, 3);
+        checks.equal(ThresholdEvaluator.CLEARED, e.evaluate(3, 150, 0, 0, 1, 3), "disabling clears the breach");
+        checks.equal(ThresholdEvaluator.NONE, e.evaluate(3, 150, 0, 0, 1, 3), "cleared once");
+        checks.equal(ThresholdEvaluator.NONE, e.evaluate(4, 150, 0, 0, 1, 3), "disabled");
+        checks.equal(ThresholdEvaluator.RAISED, e.evaluate(3, 150, RAISE, CLEAR, 1, 3), "enabled again");
+    }
+}
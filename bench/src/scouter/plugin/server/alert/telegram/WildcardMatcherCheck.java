@@ -0,0 +1,121 @@
+/*
+ *  Copyright 2016 Scouter Project.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package scouter.plugin.server.alert.telegram;
+
+import java.util.regex.Pattern;
+
+/**
+ * {@link WildcardMatcher} against the matching it replaced : every entry of the list turned into a regex
+ * by replacing '*' with '.*' and matched on its own. Regex metacharacters are literal in the matcher,
+ * so patterns carrying them are compared with the old matching of the message list, which escaped '(', ')', '[' and ']',
+ * and with a reference in which every character but '*' is quoted.
+ * The old matching did not let '*' span a line break, the matcher does, so texts with one are compared with the reference only.
+ */
+class WildcardMatcherCheck implements Checks.Check {
+
+    private static final String[] TEXTS = {
+            "", "a", "abc", "a.c", "axc", "abc$", "abc$d", "f(x)", "f(x)y", "fx", "a+b", "aab", "a+", "a*b",
+            "/theme/main/addMember.do", "/theme/main/addMember", "warning slow sql : select", "WARNING slow sql",
+            "[tomcat1] GC time exceed", "tomcat1", "x tomcat1 y", "tomcat", "error.log", "errorXlog",
+            "multi\nline text", "line", "a,b", "  padded  "
+    };
+
+    // no regex metacharacter but '*' : the old and the new matching are the same
+    private static final String[] PLAIN = {
+            "abc", "abc*", "*abc", "*abc*", "a*c", "*a*c*", "*", "**", "tomcat1", "tomcat*", "*tomcat1*",
+            "/theme/main/addMember*", "*warning slow sql*", "*line*", "multi*text", "abc, *tomcat1, a*c",
+            "*slow sql*,tomcat1,*.do", "padded", ""
+    };
+
+    // regex metacharacters, matched literally by the matcher
+    private static final String[] META = {
+            "a.c", "a.c*", "*.do", "*.log", "abc$", "abc$*", "f(x)", "f(x)*", "*(x)*", "a+b", "a+", "*a+*",
+            "[tomcat1]*", "*[tomcat1]*", "a.c,f(x)*,*tomcat1", "error.*", "a*.c", "*$d,a+b,tomcat"
+    };
+
+    @Override
+    public void run(Checks checks) {
+        for (String patterns : PLAIN) {
+            WildcardMatcher matcher = WildcardMatcher.compile(patterns);
+            for (String text : TEXTS) {
+                if (text.indexOf('\n') < 0) {
+                    checks.equal(old(patterns, text, false), matcher.matches(text), "'" + patterns + "' on '" + text + "'");
+                }
+                checks.equal(literal(patterns, text), matcher.matches(text), "'" + patterns + "' on '" + text + "' (literal)");
+            }
+        }
+
+        for (String patterns : META) {
+            WildcardMatcher matcher = WildcardMatcher.compile(patterns);
+            for (String text : TEXTS) {
+                checks.equal(literal(patterns, text), matcher.matches(text), "'" + patterns + "' on '" + text + "'");
+                if (patterns.matches("[^.$+]*") && text.indexOf('\n') < 0) {
+                    // only brackets and parentheses, which the old message list escaped
+                    checks.equal(old(patterns, text, true), matcher.matches(text), "'" + patterns + "' on '" + text + "' (message list)");
+                }
+            }
+        }
+
+        // what the literal matching changes
+        checks.check(!WildcardMatcher.compile("a.c").matches("axc"), "'.' is not a wildcard");
+        checks.check(WildcardMatcher.compile("a.c").matches("a.c"), "'.' matches itself");
+        checks.check(WildcardMatcher.compile("abc$").matches("abc$"), "'$' matches itself");
+        checks.check(WildcardMatcher.compile("a+b").matches("a+b") && !WildcardMatcher.compile("a+b").matches("aab"), "'+' matches itself");
+        checks.check(WildcardMatcher.compile("f(x)").matches("f(x)"), "'(' and ')' match themselves");
+        checks.check(WildcardMatcher.compile(null).isEmpty() && WildcardMatcher.compile(" , ").isEmpty(), "no pattern");
+        checks.check(!WildcardMatcher.compile("abc").matches(null), "null text");
+        checks.check(WildcardMatcher.compile("*line*").matches("multi\nline text") && WildcardMatcher.compile("multi*text").matches("multi\nline text"),
+                "'*' spans a line break");
+    }
+
+    /**
+     * The matching before the matcher, with the escaping of the message list when messageList is set.
+     */
+    private static boolean old(String patterns, String text, boolean messageList) {
+        if (patterns == null || "".equals(patterns)) {
+            return false;
+        }
+        for (String pattern : patterns.split(",")) {
+            // the matcher ignores the spaces around an entry
+            String regex = pattern.trim().replaceAll("\\*", ".*");
+            if (messageList) {
+                regex = regex.replaceAll("\\(", "\\\\(").replaceAll("\\)", "\\\\)")
+                        .replaceAll("\\[", "\\\\[").replaceAll("\\]", "\\\\]");
+            }
+            if (pattern.trim().length() > 0 && text.matches(regex)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean literal(String patterns, String text) {
+        for (String pattern : patterns.split(",")) {
+            pattern = pattern.trim();
+            if (pattern.length() == 0) {
+                continue;
+            }
+            StringBuilder regex = new StringBuilder();
+            for (char ch : pattern.toCharArray()) {
+                regex.append(ch == '*' ? ".*" : Pattern.quote(String.valueOf(ch)));
+            }
+            if (Pattern.compile(regex.toString(), Pattern.DOTALL).matcher(text).matches()) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ *  Copyright 2016 Scouter Project.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package scouter.plugin.server.alert.telegram;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import scouter.lang.pack.XLogPack;
+import scouter.server.Configure;
+
+/**
+ * Throughput of {@link TelegramPlugin#xlog(XLogPack)} for normal, error and slow transactions,
+ * with and without the elapsed time baselines which see every xlog.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class XLogBenchmark {
+
+    private static final int PACK_COUNT = 1024;
+
+    @Param({ "false", "true" })
+    public boolean baseline;
+
+    private TelegramPlugin plugin;
+    private XLogPack[] normal;
+    private XLogPack[] error;
+    private XLogPack[] slow;
+    private int index;
+
+    @Setup
+    public void setup() {
+        plugin = BenchFixture.pluginWithoutDelivery();
+        Configure.set("ext_plugin_elapsed_baseline_enabled", baseline);
+        TelegramPluginConfig.reload(Configure.getInstance(), true);
+        normal = new XLogPack[PACK_COUNT];
+        error = new XLogPack[PACK_COUNT];
+        slow = new XLogPack[PACK_COUNT];
+
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < PACK_COUNT; i++) {
+            normal[i] = pack(i, now, 120, 0);
+            error[i] = pack(i, now, 120, 1000 + i % 50);
+            slow[i] = pack(i, now, 8000, 0);
+        }
+    }
+
+    private static XLogPack pack(int i, long now, int elapsed, int error) {
+        XLogPack pack = new XLogPack();
+        pack.objHash = BenchFixture.objHash(i);
+        pack.endTime = now;
+        pack.elapsed = elapsed;
+        pack.service = 7000 + i % 200;
+        pack.error = error;
+        return pack;
+    }
+
+    @Benchmark
+    public void normal() {
+        plugin.xlog(normal[index++ & (PACK_COUNT - 1)]);
+    }
+
+    @Benchmark
+    public void error() {
+        plugin.xlog(error[index++ & (PACK_COUNT - 1)]);
+    }
+
+    @Benchmark
+    public void slow() {
+        plugin.xlog(slow[index++ & (PACK_COUNT - 1)]);
+    }
+}
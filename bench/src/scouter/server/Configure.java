@@ -0,0 +1,72 @@
+/*
+ *  Copyright 2016 Scouter Project.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package scouter.server;
+
+import java.io.File;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Benchmark stand-in for the scouter server configuration. Values are set by the benchmark fixtures.
+ */
+public class Configure extends Thread {
+
+    private static final Configure instance = new Configure();
+    private static final Map<String, String> values = new ConcurrentHashMap<String, String>();
+
+    public boolean _trace = false;
+    public String db_dir = System.getProperty("java.io.tmpdir");
+
+    public static Configure getInstance() {
+        return instance;
+    }
+
+    public static void set(String key, Object value) {
+        values.put(key, String.valueOf(value));
+    }
+
+    public static void clear() {
+        values.clear();
+    }
+
+    public String getValue(String key) {
+        return values.get(key);
+    }
+
+    public String getValue(String key, String def) {
+        String v = values.get(key);
+        return v == null ? def : v;
+    }
+
+    public boolean getBoolean(String key, boolean def) {
+        String v = values.get(key);
+        return v == null ? def : Boolean.parseBoolean(v);
+    }
+
+    public int getInt(String key, int def) {
+        String v = values.get(key);
+        return v == null ? def : Integer.parseInt(v);
+    }
+
+    public long getLong(String key, long def) {
+        String v = values.get(key);
+        return v == null ? def : Long.parseLong(v);
+    }
+
+    public File getPropertyFile() {
+        return new File(db_dir, "scouter-bench.conf");
+    }
+}
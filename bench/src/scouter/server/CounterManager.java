@@ -0,0 +1,64 @@
+/*
+ *  Copyright 2016 Scouter Project.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package scouter.server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import scouter.lang.counters.CounterEngine;
+
+/**
+ * Benchmark stand-in for the scouter server counter manager, loading the counters.xml bundled in scouter-common.
+ */
+public class CounterManager {
+
+    private static final CounterManager instance = new CounterManager();
+
+    private final CounterEngine engine = new CounterEngine();
+
+    private CounterManager() {
+        InputStream in = CounterEngine.class.getResourceAsStream("/scouter/lang/counters/counters.xml");
+        if (in == null) {
+            return;
+        }
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buf = new byte[8192];
+            int n;
+            while ((n = in.read(buf)) > 0) {
+                out.write(buf, 0, n);
+            }
+            engine.parse(out.toByteArray());
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        } finally {
+            try {
+                in.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+    }
+
+    public static CounterManager getInstance() {
+        return instance;
+    }
+
+    public CounterEngine getCounterEngine() {
+        return engine;
+    }
+}
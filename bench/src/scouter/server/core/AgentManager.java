@@ -0,0 +1,47 @@
+/*
+ *  Copyright 2016 Scouter Project.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package scouter.server.core;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import scouter.lang.pack.ObjectPack;
+
+/**
+ * Benchmark stand-in for the scouter server agent registry.
+ */
+public class AgentManager {
+
+    private static final Map<Integer, ObjectPack> agents = new ConcurrentHashMap<Integer, ObjectPack>();
+
+    public static void register(ObjectPack pack) {
+        agents.put(pack.objHash, pack);
+    }
+
+    public static ObjectPack getAgent(int objHash) {
+        return agents.get(objHash);
+    }
+
+    public static String getAgentName(int objHash) {
+        ObjectPack pack = agents.get(objHash);
+        return pack == null ? null : pack.objName;
+    }
+
+    public static boolean isActive(int objHash) {
+        ObjectPack pack = agents.get(objHash);
+        return pack != null && pack.alive;
+    }
+}
@@ -0,0 +1,173 @@
+/*
+ *  Copyright 2016 Scouter Project.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package scouter.plugin.server.alert.telegram;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import scouter.lang.AlertLevel;
+
+/**
+ * Collects alerts for a flush window and renders them as one digest message grouped by level and object.
+ * A batch is flushed when the window is elapsed, when it holds the maximum count of alerts
+ * or when one more alert would exceed the text budget of a telegram message.
+ */
+public class AlertBatcher {
+
+    /** Telegram rejects a text longer than 4096 characters. */
+    public static final int TELEGRAM_TEXT_LIMIT = 4096;
+
+    public interface Flusher {
+        void flush(String text);
+    }
+
+    public static class Item {
+        final byte level;
+        final String objType;
+        final String name;
+        final String title;
+        final String message;
+
+        public Item(byte level, String objType, String name, String title, String message) {
+            this.level = level;
+            this.objType = objType;
+            this.name = name;
+            this.title = title;
+            this.message = message;
+        }
+    }
+
+    private static final Comparator<Item> ORDER = new Comparator<Item>() {
+        @Override
+        public int compare(Item o1, Item o2) {
+            if (o1.level != o2.level) {
+                return o2.level - o1.level;
+            }
+            return o1.name.compareTo(o2.name);
+        }
+    };
+
+    private final Flusher flusher;
+    private List<Item> items = new ArrayList<Item>();
+    private int textLength;
+    private long openedAt;
+
+    public AlertBatcher(Flusher flusher) {
+        this.flusher = flusher;
+    }
+
+    /**
+     * Add an alert to the current batch, flushing the batch first or afterwards if a limit is reached.
+     */
+    public void add(Item item, int maxCount, int maxChars, MessageTemplate template) {
+        List<Item> full = null;
+        List<Item> overflow = null;
+        int limit = Math.min(maxChars, TELEGRAM_TEXT_LIMIT) - 64;
+        int length = estimate(item);
+
+        synchronized (this) {
+            if (!items.isEmpty() && textLength + length > limit) {
+                full = swap();
+            }
+            if (items.isEmpty()) {
+                openedAt = System.currentTimeMillis();
+            }
+            items.add(item);
+            textLength += length;
+            if (items.size() >= maxCount || textLength >= limit) {
+                overflow = swap();
+            }
+        }
+
+        if (full != null) {
+            flusher.flush(render(full, limit, template));
+        }
+        if (overflow != null) {
+            flusher.flush(render(overflow, limit, template));
+        }
+    }
+
+    /**
+     * Flush the current batch if its window is elapsed. Called periodically from the plugin's scheduler.
+     */
+    public void flushIfExpired(long windowMillis, int maxChars, MessageTemplate template) {
+        List<Item> batch = null;
+
+        synchronized (this) {
+            if (!items.isEmpty() && System.currentTimeMillis() - openedAt >= windowMillis) {
+                batch = swap();
+            }
+        }
+
+        if (batch != null) {
+            flusher.flush(render(batch, Math.min(maxChars, TELEGRAM_TEXT_LIMIT) - 64, template));
+        }
+    }
+
+    private List<Item> swap() {
+        List<Item> batch = items;
+        items = new ArrayList<Item>();
+        textLength = 0;
+        return batch;
+    }
+
+    private static int estimate(Item item) {
+        // the object header is counted for every item, so the estimate never undershoots
+        return item.name.length() + item.objType.length() + item.title.length() + item.message.length() + 32;
+    }
+
+    /**
+     * Text of a batch, the template's text for a single alert or a digest grouped by level and object.
+     * The digest is cut at an alert boundary, so an escape sequence of the parse mode is never broken.
+     */
+    static String render(List<Item> batch, int limit, MessageTemplate template) {
+        if (batch.size() == 1) {
+            return template.render(batch.get(0));
+        }
+
+        Collections.sort(batch, ORDER);
+
+        StringBuilder sb = new StringBuilder(limit + 64);
+        template.appendEscaped(sb, "[DIGEST] : " + batch.size() + " alerts\n");
+
+        StringBuilder entry = new StringBuilder(256);
+        byte level = -1;
+        String name = null;
+        for (int i = 0; i < batch.size(); i++) {
+            Item item = batch.get(i);
+
+            entry.setLength(0);
+            if (item.level != level) {
+                template.appendEscaped(entry, "\n[" + AlertLevel.getName(item.level) + "]\n");
+            }
+            if (item.level != level || !item.name.equals(name)) {
+                template.appendEscaped(entry, item.name + " (" + item.objType.toUpperCase() + ")\n");
+            }
+            template.appendEscaped(entry, " - " + item.title + " : " + item.message + "\n");
+
+            if (sb.length() + entry.length() > limit - 32) {
+                template.appendEscaped(sb, " ... " + (batch.size() - i) + " more");
+                break;
+            }
+            sb.append(entry);
+            level = item.level;
+            name = item.name;
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,156 @@
+/*
+ *  Copyright 2016 Scouter Project.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package scouter.plugin.server.alert.telegram;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import scouter.lang.pack.AlertPack;
+import scouter.server.Logger;
+
+/**
+ * Bounded queue and fixed worker pool which delivers alerts off the plugin callback thread.
+ * Plugin callbacks only enqueue and return; when the queue is full the overflow policy decides
+ * whether the new alert or the oldest queued alert is dropped.
+ */
+public class AlertDispatcher {
+
+    public static final String POLICY_DROP_NEW = "drop_new";
+    public static final String POLICY_DROP_OLD = "drop_old";
+
+    public interface Handler {
+        void handle(AlertPack pack);
+    }
+
+    private final Handler handler;
+    private final ThreadPoolExecutor executor;
+    private final long drainTimeoutMillis;
+    private final AtomicLong dropped = new AtomicLong();
+
+    public AlertDispatcher(Handler handler, int workers, int capacity, String overflowPolicy, long drainTimeoutMillis) {
+        this.handler = handler;
+        this.drainTimeoutMillis = drainTimeoutMillis;
+
+        workers = Math.max(1, workers);
+        capacity = Math.max(1, capacity);
+
+        this.executor = new ThreadPoolExecutor(workers, workers, 60L, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(capacity), new DaemonThreadFactory("telegram-alert-sender"),
+                POLICY_DROP_OLD.equalsIgnoreCase(overflowPolicy) ? new DropOldestPolicy() : new DropNewestPolicy());
+    }
+
+    /**
+     * Enqueue an alert for delivery. Never blocks the caller.
+     */
+    public void dispatch(final AlertPack pack) {
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                handler.handle(pack);
+            }
+        });
+    }
+
+    /**
+     * Run a delivery task (e.g. a scheduled retry) on the worker pool under the same overflow policy.
+     */
+    public void execute(final Runnable task) {
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    task.run();
+                } catch (Throwable t) {
+                    Logger.printStackTrace(t);
+                }
+            }
+        });
+    }
+
+    public int getQueueSize() {
+        return executor.getQueue().size();
+    }
+
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+
+    /**
+     * Stop accepting alerts and give queued ones a chance to be delivered.
+     */
+    public void shutdown() {
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(drainTimeoutMillis, TimeUnit.MILLISECONDS)) {
+                Logger.println("[TelegramPlugin] " + executor.shutdownNow().size() + " alert(s) discarded on shutdown.");
+            }
+        } catch (InterruptedException e) {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void onDropped() {
+        long count = dropped.incrementAndGet();
+        // log the first drop and then every 1000th so a storm does not flood the server log
+        if (count == 1 || count % 1000 == 0) {
+            Logger.println("[TelegramPlugin] alert queue is full. " + count + " alert(s) dropped so far.");
+        }
+    }
+
+    private class DropNewestPolicy implements RejectedExecutionHandler {
+        @Override
+        public void rejectedExecution(Runnable r, ThreadPoolExecutor e) {
+            if (!e.isShutdown()) {
+                onDropped();
+            }
+        }
+    }
+
+    private class DropOldestPolicy implements RejectedExecutionHandler {
+        @Override
+        public void rejectedExecution(Runnable r, ThreadPoolExecutor e) {
+            if (!e.isShutdown()) {
+                e.getQueue().poll();
+                onDropped();
+                if (!e.getQueue().offer(r)) {
+                    onDropped();
+                }
+            }
+        }
+    }
+
+    static class DaemonThreadFactory implements ThreadFactory {
+        private final String prefix;
+        private final AtomicInteger seq = new AtomicInteger();
+
+        DaemonThreadFactory(String prefix) {
+            this.prefix = prefix;
+        }
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, prefix + "-" + seq.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        }
+    }
+}
@@ -0,0 +1,687 @@
+/*
+ *  Copyright 2016 Scouter Project.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package scouter.plugin.server.alert.telegram;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+import scouter.server.Logger;
+
+/**
+ * Durable append-only spool of alert messages waiting for delivery.
+ * Messages are appended to numbered segment files (record : length, crc32, time, utf-8 destination and text) and
+ * forced to disk by {@link #sync()} on an interval instead of on every append.
+ * Every destination is a lane with its own read position and delivered (ack) position, so a throttled or failing chat
+ * never holds back the others. The replayer thread reads ahead of each lane and hands its records to the
+ * {@link Delivery} without waiting for them, a lane's ack moves once its oldest records are done with.
+ * The ack positions are kept in the 'ack' file, so whatever was not delivered before an outage or a restart is sent
+ * afterwards (at least once). A segment is deleted once every lane is past it.
+ * The oldest segments are dropped when the spool exceeds its size cap, records older than the age cap are skipped.
+ * Segment files are deleted by the replayer thread, after it closed its channel on them.
+ */
+public class AlertSpool {
+
+    public interface Delivery {
+        /**
+         * Hand a spooled message over for delivery. Called on the replayer thread, which serves every destination,
+         * so it must not block.
+         *
+         * @param done to run once the message is done with : delivered, rejected, given up or discarded
+         */
+        void deliver(String destination, String text, Runnable done);
+    }
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final String SUFFIX = ".spool";
+    private static final int HEADER_SIZE = 16;
+    private static final int MAX_RECORD_SIZE = 1024 * 1024;
+    /** separates the destination name from the text in a record */
+    private static final char SEPARATOR = '\u0000';
+
+    private static class Record {
+        final long seq;
+        final long pos;
+        final long time;
+        final String destination;
+        final String text;
+        final long next;
+
+        Record(long seq, long pos, long time, String data, long next) {
+            this.seq = seq;
+            this.pos = pos;
+            this.time = time;
+            // records spooled before destinations existed have no destination name
+            int idx = data.indexOf(SEPARATOR);
+            this.destination = idx < 0 ? DestinationRouter.DEFAULT : data.substring(0, idx);
+            this.text = idx < 0 ? data : data.substring(idx + 1);
+            this.next = next;
+        }
+    }
+
+    private static class Pending {
+        final long seq;
+        final long pos;
+        boolean done;
+
+        Pending(long seq, long pos) {
+            this.seq = seq;
+            this.pos = pos;
+        }
+    }
+
+    /**
+     * The records of one destination. A lane exists while the destination has records which are not done with.
+     */
+    private static class Lane {
+        final String name;
+        // next record to read
+        long readSeq;
+        long readPos;
+        // records handed over and not acknowledged yet, oldest first
+        final ArrayDeque<Pending> pending = new ArrayDeque<Pending>();
+
+        Lane(String name, long seq, long pos) {
+            this.name = name;
+            this.readSeq = seq;
+            this.readPos = pos;
+        }
+
+        long ackSeq() {
+            return pending.isEmpty() ? readSeq : pending.peek().seq;
+        }
+
+        long ackPos() {
+            return pending.isEmpty() ? readPos : pending.peek().pos;
+        }
+    }
+
+    private final File dir;
+    private final Delivery delivery;
+    private final Thread replayer;
+    private volatile boolean running = true;
+
+    // segment seq -> file, guarded by this
+    private final TreeMap<Long, File> segments = new TreeMap<Long, File>();
+    // segments dropped from the spool whose file is not deleted yet, guarded by this
+    private final Map<Long, File> doomed = new LinkedHashMap<Long, File>();
+    // the last segment whose failed delete was logged
+    private long deleteWarned;
+    private long totalBytes;
+    private long droppedSegments;
+    private long expiredCount;
+
+    // writer, guarded by this
+    private long writeSeq;
+    private long writePos;
+    private FileChannel writeChannel;
+    private boolean writeDirty;
+
+    // lanes by destination and the ack file, guarded by this
+    private final Map<String, Lane> lanes = new LinkedHashMap<String, Lane>();
+    private final RandomAccessFile ackFile;
+    private boolean ackChanged;
+    private boolean ackDirty;
+    private boolean closed;
+    // bumped on every append and every message done with, so the replayer does not wait on a change it missed
+    private long signals;
+
+    // used by the replayer thread only
+    private final Map<Long, FileChannel> readChannels = new HashMap<Long, FileChannel>();
+
+    public AlertSpool(File dir, Delivery delivery) throws IOException {
+        this.dir = dir;
+        this.delivery = delivery;
+
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("can not create spool directory : " + dir.getAbsolutePath());
+        }
+
+        File[] files = dir.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File d, String name) {
+                return name.endsWith(SUFFIX);
+            }
+        });
+        if (files != null) {
+            for (File f : files) {
+                String name = f.getName();
+                try {
+                    segments.put(Long.parseLong(name.substring(0, name.length() - SUFFIX.length())), f);
+                    totalBytes += f.length();
+                } catch (NumberFormatException e) {
+                    // not a segment of ours
+                }
+            }
+        }
+
+        // ack file : the lowest ack of all (what a single position spool reads), the base, then the lanes
+        this.ackFile = new RandomAccessFile(new File(dir, "ack"), "rw");
+        long minSeq = 0;
+        long baseSeq = 0;
+        long basePos = 0;
+        if (ackFile.length() >= 16) {
+            minSeq = ackFile.readLong();
+            long minPos = ackFile.readLong();
+            baseSeq = minSeq;
+            basePos = minPos;
+        }
+        if (ackFile.length() > 16) {
+            baseSeq = ackFile.readLong();
+            basePos = ackFile.readLong();
+            int n = ackFile.readInt();
+            for (int i = 0; i < n; i++) {
+                String name = ackFile.readUTF();
+                lanes.put(name, new Lane(name, ackFile.readLong(), ackFile.readLong()));
+            }
+        }
+
+        // segments before every ack are fully delivered
+        while (!segments.isEmpty() && segments.firstKey() < minSeq) {
+            deleteSegment(segments.firstKey());
+        }
+
+        // destinations which are not in the ack file had nothing undelivered before the base
+        for (Map.Entry<Long, File> e : segments.tailMap(baseSeq, true).entrySet()) {
+            long seq = e.getKey();
+            FileChannel ch = new RandomAccessFile(e.getValue(), "r").getChannel();
+            try {
+                long limit = ch.size();
+                Record r;
+                for (long pos = seq == baseSeq ? basePos : 0; (r = read(ch, seq, pos, limit)) != null; pos = r.next) {
+                    if (!lanes.containsKey(r.destination)) {
+                        lanes.put(r.destination, new Lane(r.destination, seq, pos));
+                    }
+                }
+            } finally {
+                closeQuietly(ch);
+            }
+        }
+
+        // always append to a new segment, a previous one may end with a torn record
+        writeSeq = segments.isEmpty() ? Math.max(1, baseSeq + 1) : Math.max(segments.lastKey(), baseSeq) + 1;
+        openWriteSegment();
+        // written by the replayer, which also releases the previous segments if they are delivered
+        ackChanged = true;
+
+        if (totalBytes > 0) {
+            Logger.println("[TelegramPlugin] " + totalBytes + " bytes of undelivered alerts found in the spool " + dir.getAbsolutePath());
+        }
+
+        this.replayer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                replay();
+            }
+        }, "telegram-alert-spool");
+        this.replayer.setDaemon(true);
+    }
+
+    public void start() {
+        replayer.start();
+    }
+
+    /**
+     * Append a message to the spool. It reaches the disk on the next {@link #sync()}.
+     *
+     * @return false if the message could not be written
+     */
+    public boolean append(String destination, String text) {
+        byte[] data = (destination + SEPARATOR + text).getBytes(UTF8);
+        CRC32 crc = new CRC32();
+        crc.update(data);
+
+        ByteBuffer buf = ByteBuffer.allocate(HEADER_SIZE + data.length);
+        buf.putInt(data.length).putInt((int) crc.getValue()).putLong(System.currentTimeMillis()).put(data);
+        buf.flip();
+
+        TelegramPluginConfig c = TelegramPluginConfig.get();
+        synchronized (this) {
+            if (closed) {
+                return false;
+            }
+            try {
+                if (writePos > 0 && writePos + buf.remaining() > c.spoolSegmentBytes) {
+                    rotate();
+                }
+                long pos = writePos;
+                int size = buf.remaining();
+                while (buf.hasRemaining()) {
+                    writeChannel.write(buf);
+                }
+                writePos += size;
+                totalBytes += size;
+                writeDirty = true;
+
+                if (!lanes.containsKey(destination)) {
+                    lanes.put(destination, new Lane(destination, writeSeq, pos));
+                    ackChanged = true;
+                }
+
+                enforceMaxBytes(c.spoolMaxBytes);
+                signals++;
+                notifyAll();
+                return true;
+            } catch (IOException e) {
+                Logger.println("[TelegramPlugin] failed to write the alert spool : " + e.getMessage());
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Force appended messages and the delivered positions to disk.
+     */
+    public synchronized void sync() {
+        if (closed) {
+            return;
+        }
+        try {
+            writeAck();
+            if (writeDirty) {
+                writeChannel.force(false);
+                writeDirty = false;
+            }
+            if (ackDirty) {
+                ackFile.getChannel().force(false);
+                ackDirty = false;
+            }
+        } catch (IOException e) {
+            Logger.println("[TelegramPlugin] failed to sync the alert spool : " + e.getMessage());
+        }
+    }
+
+    public synchronized long getPendingBytes() {
+        return totalBytes;
+    }
+
+    public synchronized int getSegmentCount() {
+        return segments.size();
+    }
+
+    public synchronized int getLaneCount() {
+        return lanes.size();
+    }
+
+    public synchronized long getDroppedSegments() {
+        return droppedSegments;
+    }
+
+    public synchronized long getExpiredCount() {
+        return expiredCount;
+    }
+
+    /**
+     * Stop replaying. Messages not delivered yet stay in the spool for the next start.
+     */
+    public void shutdown() {
+        running = false;
+        replayer.interrupt();
+        try {
+            replayer.join(1000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        synchronized (this) {
+            sync();
+            closed = true;
+            closeQuietly(writeChannel);
+            for (FileChannel ch : readChannels.values()) {
+                closeQuietly(ch);
+            }
+            readChannels.clear();
+            deleteDoomed();
+            try {
+                ackFile.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+    }
+
+    private void replay() {
+        while (running) {
+            try {
+                long seen;
+                List<Lane> snapshot;
+                synchronized (this) {
+                    deleteDoomed();
+                    seen = signals;
+                    snapshot = new ArrayList<Lane>(lanes.values());
+                }
+
+                TelegramPluginConfig c = TelegramPluginConfig.get();
+                for (Lane lane : snapshot) {
+                    fill(lane, window(c, lane.name));
+                }
+
+                synchronized (this) {
+                    removeIdleLanes();
+                    writeAck();
+                    if (signals == seen) {
+                        wait(1000);
+                    }
+                }
+            } catch (InterruptedException e) {
+                // shutdown
+            } catch (Exception e) {
+                Logger.printStackTrace(e);
+                try {
+                    Thread.sleep(1000);
+                } catch (InterruptedException ie) {
+                    // shutdown
+                }
+            }
+        }
+    }
+
+    /**
+     * Records of a lane handed over at a time : enough to keep its outbox busy, never more than the outbox holds.
+     */
+    private static int window(TelegramPluginConfig c, String destination) {
+        DestinationRouter.Destination d = c.destination(destination);
+        if (d == null) {
+            return 1;
+        }
+        int busy = c.asyncDelivery ? c.asyncInFlightPerChat : 1;
+        return Math.max(1, Math.min(d.queueSize, busy + 1));
+    }
+
+    /**
+     * Hand over the next records of a lane until it has a window of them pending.
+     */
+    private void fill(final Lane lane, int window) throws IOException {
+        for (;;) {
+            synchronized (this) {
+                if (lane.pending.size() >= window || lanes.get(lane.name) != lane) {
+                    return;
+                }
+            }
+            Record r = next(lane);
+            if (r == null) {
+                return;
+            }
+
+            final Pending p = new Pending(r.seq, r.pos);
+            synchronized (this) {
+                lane.pending.add(p);
+            }
+            if (expired(r)) {
+                done(lane, p);
+            } else {
+                delivery.deliver(lane.name, r.text, new Runnable() {
+                    @Override
+                    public void run() {
+                        done(lane, p);
+                    }
+                });
+            }
+        }
+    }
+
+    private synchronized void done(Lane lane, Pending p) {
+        p.done = true;
+        while (!lane.pending.isEmpty() && lane.pending.peek().done) {
+            lane.pending.poll();
+            ackChanged = true;
+        }
+        signals++;
+        notifyAll();
+    }
+
+    private boolean expired(Record r) {
+        long maxAge = TelegramPluginConfig.get().spoolMaxAgeMillis;
+        if (maxAge > 0 && System.currentTimeMillis() - r.time > maxAge) {
+            synchronized (this) {
+                expiredCount++;
+            }
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return the next record of the lane, or null if there is none yet
+     */
+    private Record next(Lane lane) throws IOException {
+        for (;;) {
+            long seq;
+            long pos;
+            long limit;
+            synchronized (this) {
+                // the size cap may have dropped the segment being read
+                if (lane.readSeq < segments.firstKey()) {
+                    lane.readSeq = segments.firstKey();
+                    lane.readPos = 0;
+                }
+                if (lane.readSeq == writeSeq && lane.readPos >= writePos) {
+                    return null;
+                }
+                seq = lane.readSeq;
+                pos = lane.readPos;
+                limit = seq == writeSeq ? writePos : -1;
+            }
+
+            FileChannel ch = readChannel(seq);
+            Record r = read(ch, seq, pos, limit < 0 ? ch.size() : limit);
+
+            synchronized (this) {
+                if (r == null) {
+                    if (limit < 0) {
+                        // end of a finished segment (or a record torn by a crash)
+                        Long next = segments.higherKey(seq);
+                        lane.readSeq = next == null ? writeSeq : next;
+                        lane.readPos = 0;
+                    } else {
+                        // unreadable record in the segment being written, skip what is there
+                        Logger.println("[TelegramPlugin] skipped unreadable alert spool records in segment " + seq);
+                        lane.readPos = limit;
+                    }
+                    continue;
+                }
+                lane.readPos = r.next;
+                ackChanged = true;
+                if (lane.name.equals(r.destination)) {
+                    return r;
+                }
+            }
+        }
+    }
+
+    private FileChannel readChannel(long seq) throws IOException {
+        FileChannel ch = readChannels.get(seq);
+        if (ch == null) {
+            ch = new RandomAccessFile(segmentFile(seq), "r").getChannel();
+            readChannels.put(seq, ch);
+        }
+        return ch;
+    }
+
+    private static Record read(FileChannel ch, long seq, long pos, long limit) throws IOException {
+        if (pos + HEADER_SIZE > limit) {
+            return null;
+        }
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        readFully(ch, header, pos);
+        int length = header.getInt(0);
+        int crc = header.getInt(4);
+        long time = header.getLong(8);
+        if (length < 0 || length > MAX_RECORD_SIZE || pos + HEADER_SIZE + length > limit) {
+            return null;
+        }
+
+        ByteBuffer data = ByteBuffer.allocate(length);
+        readFully(ch, data, pos + HEADER_SIZE);
+        CRC32 crc32 = new CRC32();
+        crc32.update(data.array());
+        if ((int) crc32.getValue() != crc) {
+            return null;
+        }
+        return new Record(seq, pos, time, new String(data.array(), UTF8), pos + HEADER_SIZE + length);
+    }
+
+    private static void readFully(FileChannel ch, ByteBuffer buf, long pos) throws IOException {
+        while (buf.hasRemaining()) {
+            int n = ch.read(buf, pos + buf.position());
+            if (n < 0) {
+                throw new IOException("unexpected end of spool segment");
+            }
+        }
+    }
+
+    /**
+     * Drop the lanes which are read to the end and have nothing pending. A destination gets a new lane with its next message.
+     */
+    private void removeIdleLanes() {
+        Iterator<Lane> it = lanes.values().iterator();
+        while (it.hasNext()) {
+            Lane lane = it.next();
+            if (lane.pending.isEmpty() && lane.readSeq == writeSeq && lane.readPos >= writePos) {
+                it.remove();
+                ackChanged = true;
+            }
+        }
+    }
+
+    /**
+     * Write the ack positions if they moved, and delete the segments every lane is past.
+     */
+    private void writeAck() throws IOException {
+        if (!ackChanged || closed) {
+            return;
+        }
+        ackChanged = false;
+
+        long minSeq = writeSeq;
+        long minPos = writePos;
+        for (Lane lane : lanes.values()) {
+            long seq = lane.ackSeq();
+            long pos = lane.ackPos();
+            if (seq < minSeq || seq == minSeq && pos < minPos) {
+                minSeq = seq;
+                minPos = pos;
+            }
+        }
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 + lanes.size() * 32);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeLong(minSeq);
+        out.writeLong(minPos);
+        // every destination without a lane is done with up to here
+        out.writeLong(writeSeq);
+        out.writeLong(writePos);
+        out.writeInt(lanes.size());
+        for (Lane lane : lanes.values()) {
+            out.writeUTF(lane.name);
+            out.writeLong(lane.ackSeq());
+            out.writeLong(lane.ackPos());
+        }
+        ackFile.seek(0);
+        ackFile.write(bytes.toByteArray());
+        ackFile.setLength(bytes.size());
+        ackDirty = true;
+
+        while (segments.firstKey() < minSeq) {
+            deleteSegment(segments.firstKey());
+        }
+    }
+
+    private void rotate() throws IOException {
+        writeChannel.force(false);
+        writeChannel.close();
+        writeDirty = false;
+        writeSeq++;
+        openWriteSegment();
+    }
+
+    private void openWriteSegment() throws IOException {
+        File f = segmentFile(writeSeq);
+        writeChannel = new RandomAccessFile(f, "rw").getChannel();
+        writeChannel.position(writeChannel.size());
+        writePos = writeChannel.size();
+        segments.put(writeSeq, f);
+    }
+
+    private void enforceMaxBytes(long maxBytes) {
+        while (maxBytes > 0 && totalBytes > maxBytes && segments.size() > 1) {
+            long seq = segments.firstKey();
+            deleteSegment(seq);
+            droppedSegments++;
+            Logger.println("[TelegramPlugin] alert spool exceeds " + maxBytes + " bytes, dropped undelivered segment " + seq);
+        }
+    }
+
+    /**
+     * Drop a segment from the spool. Its file is deleted by the replayer thread, see {@link #deleteDoomed()}.
+     */
+    private void deleteSegment(long seq) {
+        File f = segments.remove(seq);
+        if (f != null) {
+            totalBytes -= f.length();
+            doomed.put(seq, f);
+        }
+    }
+
+    /**
+     * Delete the files of the dropped segments, closing the read channel first if there is one on them
+     * (an open file can not be deleted on Windows). A file which can not be deleted is tried again next time.
+     * Called by the replayer thread, or on shutdown after it stopped.
+     */
+    private void deleteDoomed() {
+        Iterator<Map.Entry<Long, File>> it = doomed.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Long, File> e = it.next();
+            closeQuietly(readChannels.remove(e.getKey()));
+            File f = e.getValue();
+            if (f.delete() || !f.exists()) {
+                it.remove();
+            } else if (e.getKey() > deleteWarned) {
+                deleteWarned = e.getKey();
+                Logger.println("[TelegramPlugin] failed to delete spool segment " + f.getAbsolutePath() + ", it is tried again.");
+            }
+        }
+    }
+
+    private File segmentFile(long seq) {
+        return new File(dir, String.format("%016d", seq) + SUFFIX);
+    }
+
+    private static void closeQuietly(FileChannel ch) {
+        if (ch != null) {
+            try {
+                ch.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+    }
+}
@@ -0,0 +1,177 @@
+/*
+ *  Copyright 2016 Scouter Project.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package scouter.plugin.server.alert.telegram;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import scouter.lang.AlertLevel;
+import scouter.lang.pack.ObjectPack;
+import scouter.server.core.AgentManager;
+import scouter.util.IntKeyLinkedMap;
+
+/**
+ * Routes an alert to the chats it should be sent to, by level, object type and agent name, e.g.
+ * <pre>
+ * ext_plugin_telegram_destinations=dba,oncall
+ * ext_plugin_telegram_dest_dba_chat_id=-1001111111111
+ * ext_plugin_telegram_dest_dba_obj_types=oracle*,mysql
+ * ext_plugin_telegram_dest_oncall_chat_id=-1002222222222
+ * ext_plugin_telegram_dest_oncall_level=2
+ * </pre>
+ * Every matching destination gets the alert. Alerts which match no destination go to ext_plugin_telegram_chat_id, if it is set.
+ * The destinations of an agent are resolved once per level and cached. The destinations themselves are compiled in {@link TelegramPluginConfig}.
+ */
+public class DestinationRouter {
+
+    public static final String DEFAULT = "default";
+
+    private static final Destination[] NONE = new Destination[0];
+
+    public static class Destination {
+        public final String name;
+        public final String chatId;
+        public final String botToken;
+        public final String sendMessageUrl;
+        final int level;
+        final WildcardMatcher agents;
+        final WildcardMatcher objTypes;
+        public final int ratePerMin;
+        public final int rateBurst;
+        public final int queueSize;
+
+        Destination(String name, String chatId, String botToken, String sendMessageUrl, int level,
+                    WildcardMatcher agents, WildcardMatcher objTypes, int ratePerMin, int rateBurst, int queueSize) {
+            this.name = name;
+            this.chatId = chatId;
+            this.botToken = botToken;
+            this.sendMessageUrl = sendMessageUrl;
+            this.level = level;
+            this.agents = agents;
+            this.objTypes = objTypes;
+            this.ratePerMin = ratePerMin;
+            this.rateBurst = rateBurst;
+            this.queueSize = queueSize;
+        }
+
+        boolean matches(String name, String objType) {
+            return (agents.isEmpty() || agents.matches(name)) && (objTypes.isEmpty() || objTypes.matches(objType));
+        }
+    }
+
+    static class Entry {
+        final String objType;
+        // destinations per alert level
+        final Destination[][] byLevel;
+
+        Entry(String objType, Destination[][] byLevel) {
+            this.objType = objType;
+            this.byLevel = byLevel;
+        }
+    }
+
+    static class Table {
+        final String signature;
+        final Destination[] destinations;
+        final Destination fallback;
+        final IntKeyLinkedMap<Entry> cache;
+
+        Table(String signature, Destination[] destinations, Destination fallback) {
+            this.signature = signature;
+            this.destinations = destinations;
+            this.fallback = fallback;
+            this.cache = new IntKeyLinkedMap<Entry>().setMax(10000);
+        }
+    }
+
+    private volatile Table table;
+
+    public DestinationRouter(TelegramPluginConfig c) {
+        reload(c);
+    }
+
+    /**
+     * @param objType object type of the alert, used when the agent is not registered
+     * @return destinations of the alert, never null
+     */
+    public Destination[] route(int objHash, byte level, String objType) {
+        if (level < AlertLevel.INFO || level > AlertLevel.FATAL) {
+            level = AlertLevel.INFO;
+        }
+
+        Table t = table;
+        Entry entry = t.cache.get(objHash);
+        if (entry != null) {
+            return entry.byLevel[level];
+        }
+
+        ObjectPack agent = AgentManager.getAgent(objHash);
+        if (agent == null || agent.objName == null) {
+            // not registered yet : do not cache so it is resolved again once the agent is known
+            return resolve(t, AgentManager.getAgentName(objHash), objType).byLevel[level];
+        }
+
+        entry = resolve(t, agent.objName, agent.objType);
+        t.cache.put(objHash, entry);
+        return entry.byLevel[level];
+    }
+
+    private static Entry resolve(Table t, String name, String objType) {
+        List<Destination> matched = new ArrayList<Destination>();
+        for (Destination d : t.destinations) {
+            if (d.matches(name, objType)) {
+                matched.add(d);
+            }
+        }
+
+        Destination[][] byLevel = new Destination[AlertLevel.FATAL + 1][];
+        List<Destination> list = new ArrayList<Destination>();
+        for (int level = 0; level < byLevel.length; level++) {
+            list.clear();
+            for (Destination d : matched) {
+                if (d.level <= level) {
+                    list.add(d);
+                }
+            }
+            if (list.isEmpty() && t.fallback != null && t.fallback.level <= level) {
+                list.add(t.fallback);
+            }
+            byLevel[level] = list.isEmpty() ? NONE : list.toArray(new Destination[list.size()]);
+        }
+        return new Entry(objType, byLevel);
+    }
+
+    /**
+     * Drop the cached destinations of an agent whose object type is changed. Called from object() on heartbeat.
+     */
+    public void refresh(int objHash, String objType) {
+        IntKeyLinkedMap<Entry> cache = table.cache;
+        Entry entry = cache.get(objHash);
+        if (entry != null && objType != null && !objType.equals(entry.objType)) {
+            cache.remove(objHash);
+        }
+    }
+
+    /**
+     * Swap in the destinations of a new configuration snapshot, dropping the cached routes if they are changed.
+     */
+    public void reload(TelegramPluginConfig c) {
+        Table t = table;
+        if (t == null || !t.signature.equals(c.destinationSignature)) {
+            table = new Table(c.destinationSignature, c.destinations, c.defaultDestination);
+        }
+    }
+}
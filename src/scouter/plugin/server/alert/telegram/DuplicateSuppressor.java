@@ -0,0 +1,140 @@
+/*
+ *  Copyright 2016 Scouter Project.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package scouter.plugin.server.alert.telegram;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Concurrent duplicate alert suppression table keyed by (objHash, title[, normalized message]).
+ * The first alert of a key opens a window, alerts of the same key within the window are suppressed and counted.
+ * When a window is closed, the listener is notified if any alert has been suppressed.
+ */
+public class DuplicateSuppressor {
+
+    public interface Listener {
+        void windowClosed(Entry entry);
+    }
+
+    public static class Entry {
+        public final int objHash;
+        public final String objType;
+        public final byte level;
+        public final String title;
+        public final long openedAt;
+        final AtomicInteger suppressed = new AtomicInteger();
+
+        Entry(int objHash, String objType, byte level, String title, long openedAt) {
+            this.objHash = objHash;
+            this.objType = objType;
+            this.level = level;
+            this.title = title;
+            this.openedAt = openedAt;
+        }
+
+        public int getSuppressedCount() {
+            return suppressed.get();
+        }
+    }
+
+    private final ConcurrentHashMap<String, Entry> table = new ConcurrentHashMap<String, Entry>();
+    private final Listener listener;
+
+    public DuplicateSuppressor(Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * @return true if the alert is a duplicate within the window and must not be sent
+     */
+    public boolean isDuplicate(int objHash, String objType, byte level, String title, String message,
+                               boolean includeMessage, long windowMillis, int maxEntries) {
+        String key = includeMessage ? objHash + "\u0000" + title + "\u0000" + normalize(message) : objHash + "\u0000" + title;
+        long now = System.currentTimeMillis();
+
+        while (true) {
+            Entry e = table.get(key);
+            if (e == null) {
+                if (table.size() >= maxEntries) {
+                    evict(now, windowMillis);
+                    if (table.size() >= maxEntries) {
+                        // table is full of live windows : let the alert go rather than grow without bound
+                        return false;
+                    }
+                }
+                if (table.putIfAbsent(key, new Entry(objHash, objType, level, title, now)) == null) {
+                    return false;
+                }
+            } else if (now - e.openedAt < windowMillis) {
+                e.suppressed.incrementAndGet();
+                return true;
+            } else if (table.replace(key, e, new Entry(objHash, objType, level, title, now))) {
+                closed(e);
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Remove the expired windows. Called periodically from the plugin's scheduler.
+     */
+    public void evict(long now, long windowMillis) {
+        Iterator<Map.Entry<String, Entry>> it = table.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<String, Entry> me = it.next();
+            Entry e = me.getValue();
+            if (now - e.openedAt >= windowMillis && table.remove(me.getKey(), e)) {
+                closed(e);
+            }
+        }
+    }
+
+    public int size() {
+        return table.size();
+    }
+
+    private void closed(Entry e) {
+        if (e.suppressed.get() > 0 && listener != null) {
+            listener.windowClosed(e);
+        }
+    }
+
+    /**
+     * Replace digit runs with '#' so that messages which differ only by numbers (counts, times, ids) share a key.
+     */
+    static String normalize(String message) {
+        if (message == null) {
+            return "";
+        }
+        StringBuilder sb = new StringBuilder(message.length());
+        boolean inDigits = false;
+        for (int i = 0; i < message.length(); i++) {
+            char c = message.charAt(i);
+            if (c >= '0' && c <= '9') {
+                if (!inDigits) {
+                    sb.append('#');
+                    inDigits = true;
+                }
+            } else {
+                sb.append(c);
+                inDigits = false;
+            }
+        }
+        return sb.toString();
+    }
+}
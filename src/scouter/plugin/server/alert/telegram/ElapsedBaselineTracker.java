@@ -0,0 +1,169 @@
+/*
+ *  Copyright 2016 Scouter Project.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package scouter.plugin.server.alert.telegram;
+
+import scouter.util.LongKeyLinkedMap;
+
+/**
+ * Streaming elapsed time baselines per (agent, service), for alerting on a service which gets slower than it used to be
+ * instead of on one global threshold.
+ * A service holds the histogram of its current window and an exponentially decayed histogram of its past windows
+ * (the baseline), both in the buckets of {@link LatencyHistogram}, so its memory is fixed.
+ * When a window is over, its percentile is compared with the same percentile of the baseline and then folded into it.
+ * A window over the limit is left out of the baseline until the service has been over it for the whole history,
+ * so a regression does not become its own baseline right away.
+ * Windows are closed by the next xlog of the service, so an idle service costs nothing.
+ * Services are kept in an LRU bounded by the maximum number of services.
+ */
+public class ElapsedBaselineTracker {
+
+    /** windows a baseline needs before it is compared with */
+    static final int WARMUP_WINDOWS = 5;
+
+    public static class Deviation {
+        public final boolean raised;
+        public final long current;
+        public final long baseline;
+        public final int samples;
+
+        Deviation(boolean raised, long current, long baseline, int samples) {
+            this.raised = raised;
+            this.current = current;
+            this.baseline = baseline;
+            this.samples = samples;
+        }
+    }
+
+    static class Service {
+        final int[] current = new int[LatencyHistogram.BUCKETS];
+        final float[] baseline = new float[LatencyHistogram.BUCKETS];
+        int count;
+        int windows;
+        int deviatingWindows;
+        long windowStart;
+        boolean breached;
+
+        Service(long time) {
+            this.windowStart = time;
+        }
+
+        /**
+         * Evaluate the current window against the baseline, then fold it into the baseline and start the next one.
+         */
+        Deviation close(long time, TelegramPluginConfig c) {
+            Deviation deviation = null;
+            boolean deviating = false;
+            // a breached service is cleared by any window under the clear level, even one with too few samples to raise,
+            // so a service which lost its traffic with its slowness recovers
+            if (count > 0 && windows >= WARMUP_WINDOWS && (breached || count >= c.elapsedBaselineMinSamples)) {
+                long value = percentile(current, count, c.elapsedBaselinePercentile);
+                long base = percentile(baseline, c.elapsedBaselinePercentile);
+                long raise = Math.max(c.elapsedBaselineMinElapsed, base * c.elapsedBaselineFactorPercent / 100);
+                deviating = count >= c.elapsedBaselineMinSamples && value > raise;
+
+                if (!breached && deviating) {
+                    breached = true;
+                    deviation = new Deviation(true, value, base, count);
+                } else if (breached && value < raise * c.elapsedBaselineClearPercent / 100) {
+                    breached = false;
+                    deviation = new Deviation(false, value, base, count);
+                }
+            }
+
+            int history = Math.max(1, c.elapsedBaselineHistoryWindows);
+            deviatingWindows = deviating ? deviatingWindows + 1 : 0;
+            if (count > 0 && (!deviating || deviatingWindows > history)) {
+                float keep = 1 - 1f / history;
+                for (int i = 0; i < current.length; i++) {
+                    baseline[i] = baseline[i] * keep + current[i];
+                }
+                windows++;
+            }
+            for (int i = 0; i < current.length; i++) {
+                current[i] = 0;
+            }
+            count = 0;
+            windowStart = time;
+            return deviation;
+        }
+    }
+
+    private final LongKeyLinkedMap<Service> services = new LongKeyLinkedMap<Service>().setMax(10000);
+    private int maxServices = 10000;
+
+    /**
+     * Add the elapsed time of an xlog.
+     *
+     * @return the deviation if the service starts or stops deviating from its baseline with this xlog, null otherwise
+     */
+    public Deviation record(int objHash, int service, int elapsed, long time, TelegramPluginConfig c) {
+        long key = ((long) objHash << 32) | (service & 0xFFFFFFFFL);
+
+        Service s = services.get(key);
+        if (s == null) {
+            if (maxServices != c.elapsedBaselineMaxServices) {
+                maxServices = c.elapsedBaselineMaxServices;
+                services.setMax(Math.max(1, maxServices));
+            }
+            s = new Service(time);
+            services.putLast(key, s);
+        }
+
+        Deviation deviation = null;
+        synchronized (s) {
+            if (time - s.windowStart >= c.elapsedBaselineWindowMillis) {
+                deviation = s.close(time, c);
+                // once a window is enough to keep the least recently used order
+                services.putLast(key, s);
+            }
+            s.current[LatencyHistogram.bucket(elapsed)]++;
+            s.count++;
+        }
+        return deviation;
+    }
+
+    public int size() {
+        return services.size();
+    }
+
+    static long percentile(int[] counts, int total, int p) {
+        long rank = Math.max(1, (long) Math.ceil(total * (double) p / 100));
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return LatencyHistogram.upperBound(i);
+            }
+        }
+        return LatencyHistogram.upperBound(counts.length - 1);
+    }
+
+    static long percentile(float[] weights, int p) {
+        double total = 0;
+        for (float w : weights) {
+            total += w;
+        }
+        double rank = total * p / 100;
+        double seen = 0;
+        for (int i = 0; i < weights.length; i++) {
+            seen += weights[i];
+            if (seen >= rank) {
+                return LatencyHistogram.upperBound(i);
+            }
+        }
+        return LatencyHistogram.upperBound(weights.length - 1);
+    }
+}
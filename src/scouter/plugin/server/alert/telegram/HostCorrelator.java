@@ -0,0 +1,300 @@
+/*
+ *  Copyright 2016 Scouter Project.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package scouter.plugin.server.alert.telegram;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+
+import scouter.lang.AlertLevel;
+import scouter.lang.pack.AlertPack;
+import scouter.util.DateUtil;
+
+/**
+ * Correlates the activation and inactivation alerts of the objects of a host, so a host or switch going down
+ * is one alert instead of one per agent.
+ * The first change of a host opens a group per direction, the changes within the settle window join it,
+ * and the group is sent as one alert when the window is over (a group of one is sent as the original alert).
+ * A host is flapping when its flap count-th latest group is within the flap window; its groups are then only counted,
+ * with a reminder at doubling intervals, until it has been quiet for the flap window.
+ * Hosts are taken from the "/host/instance" form of the object name, or the object address.
+ */
+public class HostCorrelator {
+
+    public static final String INACTIVATED_TITLE = "Objects of a host have been inactivated.";
+    public static final String ACTIVATED_TITLE = "Objects of a host have been activated.";
+    public static final String FLAPPING_TITLE = "A host is flapping.";
+    public static final String STABLE_TITLE = "A host is stable again.";
+
+    /** object names listed in one alert */
+    static final int MAX_NAMES = 10;
+
+    public interface Listener {
+        void correlated(AlertPack pack);
+    }
+
+    static class Group {
+        final boolean down;
+        final long openedAt;
+        final List<AlertPack> alerts = new ArrayList<AlertPack>();
+        final List<String> names = new ArrayList<String>();
+
+        Group(boolean down, long openedAt) {
+            this.down = down;
+            this.openedAt = openedAt;
+        }
+
+        void add(String name, AlertPack pack) {
+            for (int i = 0; i < alerts.size(); i++) {
+                if (alerts.get(i).objHash == pack.objHash) {
+                    alerts.set(i, pack);
+                    return;
+                }
+            }
+            alerts.add(pack);
+            names.add(name);
+        }
+
+        byte level() {
+            byte level = 0;
+            for (AlertPack ap : alerts) {
+                level = (byte) Math.max(level, ap.level);
+            }
+            return level;
+        }
+    }
+
+    static class Host {
+        final String name;
+        Group down;
+        Group up;
+
+        // close times of the latest groups, a ring of the flap count
+        long[] changes = new long[0];
+        int changeCount;
+        long lastChange;
+
+        boolean flapping;
+        long flappingSince;
+        int heldBack;
+        int heldBackReminded;
+        long backoff;
+        long nextReminder;
+
+        // the latest group, for the flapping and stable alerts
+        String lastGroup;
+        AlertPack lastAlert;
+        byte lastLevel;
+
+        Host(String name) {
+            this.name = name;
+        }
+
+        boolean isIdle() {
+            return down == null && up == null && !flapping;
+        }
+    }
+
+    private final Listener listener;
+    private final HashMap<String, Host> hosts = new HashMap<String, Host>();
+
+    public HostCorrelator(Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Hold an (in)activation alert of an object until the settle window of its host is over.
+     */
+    public synchronized void add(String host, String objName, AlertPack pack, boolean down, long now) {
+        Host h = hosts.get(host);
+        if (h == null) {
+            h = new Host(host);
+            hosts.put(host, h);
+        }
+        Group g = down ? h.down : h.up;
+        if (g == null) {
+            g = new Group(down, now);
+            if (down) {
+                h.down = g;
+            } else {
+                h.up = g;
+            }
+        }
+        g.add(shortName(host, objName), pack);
+    }
+
+    /**
+     * Send the groups whose settle window is over, and the flapping reminders and stable alerts.
+     * Called periodically from the plugin's scheduler.
+     */
+    public void flush(long settleMillis, int flapCount, long flapWindowMillis) {
+        flush(System.currentTimeMillis(), settleMillis, flapCount, flapWindowMillis);
+    }
+
+    void flush(long now, long settleMillis, int flapCount, long flapWindowMillis) {
+        List<AlertPack> out = new ArrayList<AlertPack>();
+
+        synchronized (this) {
+            Iterator<Host> it = hosts.values().iterator();
+            while (it.hasNext()) {
+                Host h = it.next();
+
+                // the older direction first, so a down and up within the window keep their order
+                Group first = h.down;
+                Group second = h.up;
+                if (first == null || (second != null && second.openedAt < first.openedAt)) {
+                    first = h.up;
+                    second = h.down;
+                }
+                if (first != null && now - first.openedAt >= settleMillis) {
+                    close(h, first, now, flapCount, flapWindowMillis, out);
+                    if (second != null && now - second.openedAt >= settleMillis) {
+                        close(h, second, now, flapCount, flapWindowMillis, out);
+                    }
+                }
+
+                if (h.flapping) {
+                    if (h.down == null && h.up == null && now - h.lastChange >= flapWindowMillis) {
+                        h.flapping = false;
+                        out.add(alert(h, h.lastLevel, STABLE_TITLE, "host " + h.name + " : stable for "
+                                + flapWindowMillis / 1000 + " s after flapping since " + DateUtil.format(h.flappingSince, "HH:mm:ss")
+                                + ", " + h.heldBack + " change(s) held back. last change : " + h.lastGroup));
+                    } else if (now >= h.nextReminder) {
+                        if (h.heldBack > h.heldBackReminded) {
+                            h.heldBackReminded = h.heldBack;
+                            out.add(alert(h, flapLevel(h), FLAPPING_TITLE, "host " + h.name + " : still flapping since "
+                                    + DateUtil.format(h.flappingSince, "HH:mm:ss") + ", " + h.heldBack
+                                    + " change(s) held back. last change : " + h.lastGroup));
+                        }
+                        h.backoff *= 2;
+                        h.nextReminder = now + h.backoff;
+                    }
+                }
+
+                if (h.isIdle() && now - h.lastChange >= flapWindowMillis) {
+                    it.remove();
+                }
+            }
+        }
+
+        for (AlertPack ap : out) {
+            listener.correlated(ap);
+        }
+    }
+
+    public synchronized int size() {
+        return hosts.size();
+    }
+
+    private static void close(Host h, Group g, long now, int flapCount, long flapWindowMillis, List<AlertPack> out) {
+        if (g.down) {
+            h.down = null;
+        } else {
+            h.up = null;
+        }
+
+        if (h.changes.length != flapCount) {
+            h.changes = new long[flapCount];
+            h.changeCount = 0;
+        }
+        h.changes[h.changeCount++ % flapCount] = now;
+        h.lastChange = now;
+        h.lastGroup = describe(g);
+        h.lastAlert = g.alerts.get(0);
+        h.lastLevel = g.level();
+
+        if (h.flapping) {
+            h.heldBack++;
+            return;
+        }
+        // the ring is full and its oldest change is within the window
+        if (h.changeCount >= flapCount && now - h.changes[h.changeCount % flapCount] <= flapWindowMillis) {
+            h.flapping = true;
+            h.flappingSince = h.changes[h.changeCount % flapCount];
+            h.heldBack = 0;
+            h.heldBackReminded = 0;
+            h.backoff = flapWindowMillis;
+            h.nextReminder = now + h.backoff;
+            out.add(alert(h, flapLevel(h), FLAPPING_TITLE, "host " + h.name + " : " + flapCount + " up/down changes within "
+                    + (now - h.flappingSince) / 1000 + " s, alerts are held back. last change : " + h.lastGroup));
+            return;
+        }
+
+        if (g.alerts.size() == 1) {
+            out.add(g.alerts.get(0));
+        } else {
+            out.add(alert(h, h.lastLevel, g.down ? INACTIVATED_TITLE : ACTIVATED_TITLE, "host " + h.name + " : " + h.lastGroup));
+        }
+    }
+
+    /** flapping is a warning at least, even if it stopped at an activation */
+    private static byte flapLevel(Host h) {
+        return (byte) Math.max(AlertLevel.WARN, h.lastLevel);
+    }
+
+    private static AlertPack alert(Host h, byte level, String title, String message) {
+        AlertPack ap = new AlertPack();
+
+        // the first object of the latest group, so the alert is routed as that object's
+        ap.level = level;
+        ap.objHash = h.lastAlert.objHash;
+        ap.objType = h.lastAlert.objType;
+        ap.title = title;
+        ap.message = message;
+        ap.time = System.currentTimeMillis();
+        return ap;
+    }
+
+    private static String describe(Group g) {
+        StringBuilder sb = new StringBuilder();
+        sb.append(g.names.size()).append(g.names.size() == 1 ? " object " : " objects ").append(g.down ? "inactive" : "active");
+        sb.append(" (");
+        for (int i = 0; i < g.names.size() && i < MAX_NAMES; i++) {
+            if (i > 0) {
+                sb.append(", ");
+            }
+            sb.append(g.names.get(i));
+        }
+        if (g.names.size() > MAX_NAMES) {
+            sb.append(", ... ").append(g.names.size() - MAX_NAMES).append(" more");
+        }
+        return sb.append(")").toString();
+    }
+
+    /**
+     * The host of an object : "cjwas03" of "/cjwas03/tomcat1", or its address when the name has no host part.
+     */
+    public static String host(String objName, String address) {
+        if (objName != null && objName.length() > 1 && objName.charAt(0) == '/') {
+            int end = objName.indexOf('/', 1);
+            if (end > 1) {
+                return objName.substring(1, end);
+            }
+        }
+        if (address != null && address.length() > 0) {
+            return address;
+        }
+        return objName;
+    }
+
+    static String shortName(String host, String objName) {
+        if (objName != null && objName.length() > host.length() + 2 && objName.startsWith("/" + host + "/")) {
+            return objName.substring(host.length() + 2);
+        }
+        return objName;
+    }
+}
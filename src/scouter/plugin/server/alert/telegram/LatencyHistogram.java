@@ -0,0 +1,115 @@
+/*
+ *  Copyright 2016 Scouter Project.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package scouter.plugin.server.alert.telegram;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free latency histogram in milliseconds. Every power of two range is split into 4 buckets
+ * (0, 1, 2, 3, 4, 5, 6, 7, 8-9, 10-11, ... ), so a percentile is off by 25% at most. Values over 2^17 ms share the last bucket.
+ * Percentiles are reported as the upper bound of the bucket they fall in.
+ */
+public class LatencyHistogram {
+
+    private static final int MAX_EXPONENT = 17;
+    static final int BUCKETS = 4 + (MAX_EXPONENT - 2) * 4;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong max = new AtomicLong();
+
+    public void record(long millis) {
+        if (millis < 0) {
+            millis = 0;
+        }
+        counts.incrementAndGet(bucket(millis));
+
+        long m;
+        while (millis > (m = max.get()) && !max.compareAndSet(m, millis)) {
+            // retry
+        }
+    }
+
+    static int bucket(long millis) {
+        if (millis < 4) {
+            return (int) millis;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(millis);
+        if (exponent >= MAX_EXPONENT) {
+            return BUCKETS - 1;
+        }
+        int sub = (int) (millis >> (exponent - 2)) & 3;
+        return 4 + (exponent - 2) * 4 + sub;
+    }
+
+    static long upperBound(int bucket) {
+        if (bucket < 4) {
+            return bucket;
+        }
+        int exponent = (bucket - 4) / 4 + 2;
+        int sub = (bucket - 4) % 4;
+        return ((4L + sub + 1) << (exponent - 2)) - 1;
+    }
+
+    /**
+     * Take the recorded values and start over.
+     */
+    public Snapshot snapshotAndReset() {
+        long[] c = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            c[i] = counts.getAndSet(i, 0);
+        }
+        return new Snapshot(c, max.getAndSet(0));
+    }
+
+    public static class Snapshot {
+        private final long[] counts;
+        private final long total;
+        public final long max;
+
+        Snapshot(long[] counts, long max) {
+            this.counts = counts;
+            this.max = max;
+            long t = 0;
+            for (long c : counts) {
+                t += c;
+            }
+            this.total = t;
+        }
+
+        public long count() {
+            return total;
+        }
+
+        /**
+         * @param p percentile, 0 to 100
+         */
+        public long percentile(double p) {
+            if (total == 0) {
+                return 0;
+            }
+            long rank = (long) Math.ceil(total * p / 100);
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank) {
+                    return i == counts.length - 1 ? max : Math.min(max, upperBound(i));
+                }
+            }
+            return max;
+        }
+    }
+}
@@ -0,0 +1,94 @@
+/*
+ *  Copyright 2016 Scouter Project.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package scouter.plugin.server.alert.telegram;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentType;
+
+import com.google.gson.stream.JsonWriter;
+
+/**
+ * sendMessage request body, written with a streaming JsonWriter into a buffer reused by the calling thread,
+ * so no Gson instance, json string or entity copy is created per message.
+ * The entity of {@link #write(String, String, String)} is valid until the same thread writes the next body.
+ */
+final class MessageBody {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final ThreadLocal<MessageBody> local = new ThreadLocal<MessageBody>() {
+        @Override
+        protected MessageBody initialValue() {
+            return new MessageBody();
+        }
+    };
+
+    private final Buffer buffer = new Buffer();
+    private final Writer writer = new OutputStreamWriter(buffer, UTF8);
+
+    private MessageBody() {
+    }
+
+    static MessageBody write(String chatId, String text, String parseMode) throws IOException {
+        MessageBody body = local.get();
+        body.buffer.reset();
+
+        // the writer is flushed, never closed, so it can be reused
+        JsonWriter json = new JsonWriter(body.writer);
+        json.beginObject();
+        json.name("chat_id").value(chatId);
+        json.name("text").value(text);
+        if (parseMode != null) {
+            json.name("parse_mode").value(parseMode);
+        }
+        json.endObject();
+        json.flush();
+        return body;
+    }
+
+    HttpEntity entity() {
+        return new ByteArrayEntity(buffer.array(), 0, buffer.size(), ContentType.APPLICATION_JSON);
+    }
+
+    /**
+     * An entity copied out of the buffer, for a request which outlives the next write of this thread.
+     */
+    HttpEntity copy() {
+        return new ByteArrayEntity(buffer.toByteArray(), ContentType.APPLICATION_JSON);
+    }
+
+    @Override
+    public String toString() {
+        return new String(buffer.array(), 0, buffer.size(), UTF8);
+    }
+
+    private static class Buffer extends ByteArrayOutputStream {
+        Buffer() {
+            super(1024);
+        }
+
+        byte[] array() {
+            return buf;
+        }
+    }
+}
@@ -0,0 +1,208 @@
+/*
+ *  Copyright 2016 Scouter Project.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package scouter.plugin.server.alert.telegram;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import scouter.lang.AlertLevel;
+
+/**
+ * Alert message template compiled once into literal and variable parts, e.g.
+ * <pre>
+ * ext_plugin_telegram_message_template=&lt;b&gt;${level}&lt;/b&gt; ${name}\n${title}\n&lt;pre&gt;${message}&lt;/pre&gt;
+ * ext_plugin_telegram_parse_mode=HTML
+ * </pre>
+ * Variables are ${type}, ${name}, ${level}, ${title} and ${message}. Their values are escaped for the parse mode
+ * (HTML or MarkdownV2), the literal parts are written in the markup of the parse mode.
+ * When no template is configured the default plain format is used, escaped for the parse mode as a whole.
+ */
+public class MessageTemplate {
+
+    public static final String PARSE_MODE_HTML = "HTML";
+    public static final String PARSE_MODE_MARKDOWN_V2 = "MarkdownV2";
+
+    static final String DEFAULT_TEMPLATE = "[TYPE] : ${type}\n[NAME] : ${name}\n[LEVEL] : ${level}\n[TITLE] : ${title}\n[MESSAGE] : ${message}";
+
+    private static final String[] VARIABLES = { "type", "name", "level", "title", "message" };
+    private static final int TYPE = 0;
+    private static final int NAME = 1;
+    private static final int LEVEL = 2;
+    private static final int TITLE = 3;
+    private static final int MESSAGE = 4;
+
+    /** characters which must be escaped anywhere in a MarkdownV2 text */
+    private static final String MARKDOWN_V2_SPECIALS = "_*[]()~`>#+-=|{}.!\\";
+
+    private final String parseMode;
+    // literals[i] is followed by the variable vars[i], the last literal by nothing
+    private final String[] literals;
+    private final int[] vars;
+    private final int literalLength;
+
+    private MessageTemplate(String parseMode, List<String> literals, List<Integer> vars) {
+        this.parseMode = parseMode;
+        this.literals = literals.toArray(new String[literals.size()]);
+        this.vars = new int[vars.size()];
+        for (int i = 0; i < this.vars.length; i++) {
+            this.vars[i] = vars.get(i);
+        }
+        int length = 0;
+        for (String literal : this.literals) {
+            length += literal.length();
+        }
+        this.literalLength = length;
+    }
+
+    /**
+     * @param template  template text, the default format if null or empty
+     * @param parseMode HTML or MarkdownV2 (case insensitive), anything else means plain text
+     */
+    public static MessageTemplate compile(String template, String parseMode) {
+        String mode = null;
+        if (PARSE_MODE_HTML.equalsIgnoreCase(parseMode)) {
+            mode = PARSE_MODE_HTML;
+        } else if (PARSE_MODE_MARKDOWN_V2.equalsIgnoreCase(parseMode)) {
+            mode = PARSE_MODE_MARKDOWN_V2;
+        }
+
+        boolean escapeLiterals = template == null || template.trim().length() == 0;
+        if (escapeLiterals) {
+            template = DEFAULT_TEMPLATE;
+        }
+
+        List<String> literals = new ArrayList<String>();
+        List<Integer> vars = new ArrayList<Integer>();
+        StringBuilder literal = new StringBuilder();
+        int pos = 0;
+        while (pos < template.length()) {
+            int start = template.indexOf("${", pos);
+            int end = start < 0 ? -1 : template.indexOf('}', start + 2);
+            int var = end < 0 ? -1 : indexOf(template.substring(start + 2, end).trim());
+
+            if (var < 0) {
+                // no more variables, or an unknown one which is kept as text
+                int next = start < 0 || end < 0 ? template.length() : end + 1;
+                literal.append(template, pos, next);
+                pos = next;
+                continue;
+            }
+
+            literal.append(template, pos, start);
+            literals.add(literal.toString());
+            vars.add(var);
+            literal.setLength(0);
+            pos = end + 1;
+        }
+        literals.add(literal.toString());
+
+        if (escapeLiterals && mode != null) {
+            for (int i = 0; i < literals.size(); i++) {
+                literals.set(i, escape(mode, literals.get(i)));
+            }
+        }
+        return new MessageTemplate(mode, literals, vars);
+    }
+
+    private static int indexOf(String name) {
+        for (int i = 0; i < VARIABLES.length; i++) {
+            if (VARIABLES[i].equalsIgnoreCase(name)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return the parse_mode of the sendMessage request, or null for plain text
+     */
+    public String getParseMode() {
+        return parseMode;
+    }
+
+    public String render(AlertBatcher.Item item) {
+        StringBuilder sb = new StringBuilder(literalLength + item.name.length() + item.title.length() + item.message.length() + 32);
+        for (int i = 0; i < vars.length; i++) {
+            sb.append(literals[i]);
+            switch (vars[i]) {
+            case TYPE:
+                appendEscaped(sb, item.objType.toUpperCase());
+                break;
+            case NAME:
+                appendEscaped(sb, item.name);
+                break;
+            case LEVEL:
+                appendEscaped(sb, AlertLevel.getName(item.level));
+                break;
+            case TITLE:
+                appendEscaped(sb, item.title);
+                break;
+            case MESSAGE:
+                appendEscaped(sb, item.message);
+                break;
+            default:
+            }
+        }
+        sb.append(literals[vars.length]);
+        return sb.toString();
+    }
+
+    public String escape(String text) {
+        return escape(parseMode, text);
+    }
+
+    public StringBuilder appendEscaped(StringBuilder sb, String text) {
+        return appendEscaped(parseMode, sb, text);
+    }
+
+    private static String escape(String parseMode, String text) {
+        if (parseMode == null || text == null) {
+            return text;
+        }
+        return appendEscaped(parseMode, new StringBuilder(text.length() + 16), text).toString();
+    }
+
+    private static StringBuilder appendEscaped(String parseMode, StringBuilder sb, String text) {
+        if (parseMode == null || text == null) {
+            return sb.append(text);
+        }
+        boolean html = PARSE_MODE_HTML.equals(parseMode);
+        for (int i = 0, n = text.length(); i < n; i++) {
+            char ch = text.charAt(i);
+            if (html) {
+                switch (ch) {
+                case '&':
+                    sb.append("&amp;");
+                    break;
+                case '<':
+                    sb.append("&lt;");
+                    break;
+                case '>':
+                    sb.append("&gt;");
+                    break;
+                default:
+                    sb.append(ch);
+                }
+            } else {
+                if (MARKDOWN_V2_SPECIALS.indexOf(ch) >= 0) {
+                    sb.append('\\');
+                }
+                sb.append(ch);
+            }
+        }
+        return sb;
+    }
+}
@@ -0,0 +1,156 @@
+/*
+ *  Copyright 2016 Scouter Project.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package scouter.plugin.server.alert.telegram;
+
+import scouter.lang.ObjectType;
+import scouter.lang.counters.CounterConstants;
+import scouter.lang.pack.ObjectPack;
+import scouter.server.CounterManager;
+import scouter.server.core.AgentManager;
+import scouter.util.IntKeyLinkedMap;
+
+/**
+ * Per object cache of what counter() needs to know about an agent : its type, family and effective thresholds.
+ * Heap thresholds are chosen by agent name pattern groups, e.g.
+ * <pre>
+ * ext_plugin_heap_threshold_groups=8G,4G
+ * ext_plugin_heap_threshold_8G_agents=/gprtwas*&#47;wise_prd*
+ * ext_plugin_8G_heap_used_threshold=7000
+ * </pre>
+ * Agents which match no group use ext_plugin_heap_used_threshold. The groups are compiled in {@link TelegramPluginConfig}.
+ */
+public class ObjectProfileCache {
+
+    /** Groups used when ext_plugin_heap_threshold_groups is not set. */
+    static final String[][] DEFAULT_GROUPS = {
+        { "8G", "/gprtwas1/wise_prd11,/gprtwas1/wise_prd12,/gprtwas2/wise_prd21,/gprtwas2/wise_prd22" },
+        { "6G", "/pEacA1/PFLS_LIVE1,/pEacA2/PFLS_LIVE2" },
+        { "4G", "/cjwas03/expwas01,/cjwas04/expwas02,/cjwas03/qmswas1,/cjwas04/qmswas2,/cjwas03/amsprd_1,/cjwas04/amsprd_2,"
+                + "/cjwas03/cmsprd_1,/cjwas04/cmsprd_2,/cjirisap1/bmis_was1,/cjirisap1/iris_was1,/cjemap/bmis_was2,/cjemap/iris_was2" },
+    };
+
+    public static class Profile {
+        public final String objType;
+        public final String family;
+        public final boolean javaee;
+        public final long heapUsedThreshold;
+        public final long gcTimeThreshold;
+
+        Profile(String objType, String family, long heapUsedThreshold, long gcTimeThreshold) {
+            this.objType = objType;
+            this.family = family;
+            this.javaee = CounterConstants.FAMILY_JAVAEE.equals(family);
+            this.heapUsedThreshold = heapUsedThreshold;
+            this.gcTimeThreshold = gcTimeThreshold;
+        }
+    }
+
+    static class HeapRule {
+        final WildcardMatcher agents;
+        final long threshold;
+
+        HeapRule(WildcardMatcher agents, long threshold) {
+            this.agents = agents;
+            this.threshold = threshold;
+        }
+    }
+
+    static class Table {
+        final String signature;
+        final HeapRule[] rules;
+        final long defaultHeapThreshold;
+        final long gcTimeThreshold;
+        final IntKeyLinkedMap<Profile> cache;
+
+        Table(String signature, HeapRule[] rules, long defaultHeapThreshold, long gcTimeThreshold) {
+            this.signature = signature;
+            this.rules = rules;
+            this.defaultHeapThreshold = defaultHeapThreshold;
+            this.gcTimeThreshold = gcTimeThreshold;
+            this.cache = new IntKeyLinkedMap<Profile>().setMax(10000);
+        }
+    }
+
+    private volatile Table table;
+
+    public ObjectProfileCache(TelegramPluginConfig c) {
+        reload(c);
+    }
+
+    /**
+     * @return the profile of the object, or null if the agent is not known to the server yet.
+     *         Profiles are cached once the family of their object type is resolved.
+     */
+    public Profile get(int objHash) {
+        Table t = table;
+        Profile profile = t.cache.get(objHash);
+        if (profile != null) {
+            return profile;
+        }
+
+        ObjectPack agent = AgentManager.getAgent(objHash);
+        if (agent == null || agent.objType == null) {
+            return null;
+        }
+
+        String family = null;
+        ObjectType objectType = CounterManager.getInstance().getCounterEngine().getObjectType(agent.objType);
+        if (objectType != null && objectType.getFamily() != null) {
+            family = objectType.getFamily().getName();
+        }
+
+        long heapThreshold = t.defaultHeapThreshold;
+        for (HeapRule rule : t.rules) {
+            if (rule.agents.matches(agent.objName)) {
+                heapThreshold = rule.threshold;
+                break;
+            }
+        }
+
+        profile = new Profile(agent.objType, family, heapThreshold, t.gcTimeThreshold);
+        // an object type the counter engine does not know yet is looked up again on the next pack,
+        // otherwise the agent would keep a non-javaee profile until its type or the configuration is changed
+        if (family != null) {
+            t.cache.put(objHash, profile);
+        }
+        return profile;
+    }
+
+    /**
+     * Drop the cached profile of an agent whose object type is changed. Called from object() on heartbeat.
+     *
+     * @return true if the profile was dropped
+     */
+    public boolean refresh(int objHash, String objType) {
+        IntKeyLinkedMap<Profile> cache = table.cache;
+        Profile profile = cache.get(objHash);
+        if (profile != null && objType != null && !objType.equals(profile.objType)) {
+            cache.remove(objHash);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Swap in the thresholds of a new configuration snapshot, dropping the cached profiles if they are changed.
+     */
+    public void reload(TelegramPluginConfig c) {
+        Table t = table;
+        if (t == null || !t.signature.equals(c.heapRuleSignature)) {
+            table = new Table(c.heapRuleSignature, c.heapRules, c.heapUsedThreshold, c.gcTimeThreshold);
+        }
+    }
+}
@@ -0,0 +1,106 @@
+/*
+ *  Copyright 2016 Scouter Project.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package scouter.plugin.server.alert.telegram;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters of the alert pipeline : how many alerts were received, filtered, suppressed and sent,
+ * and how long the telegram bot api took to answer.
+ * Counting is a striped LongAdder increment, so the hot paths do not contend on a shared counter.
+ * {@link #report(AlertDispatcher, TelegramSender, AlertSpool)} returns the counts since the previous report.
+ */
+public class PluginMetrics {
+
+    private static final PluginMetrics instance = new PluginMetrics();
+
+    // alert()
+    public final LongAdder received = new LongAdder();
+    public final LongAdder belowLevel = new LongAdder();
+
+    // send()
+    public final LongAdder ignoredName = new LongAdder();
+    public final LongAdder ignoredLevel = new LongAdder();
+    public final LongAdder ignoredTitle = new LongAdder();
+    public final LongAdder ignoredMessage = new LongAdder();
+    public final LongAdder duplicated = new LongAdder();
+    public final LongAdder batched = new LongAdder();
+    public final LongAdder spooled = new LongAdder();
+    public final LongAdder unrouted = new LongAdder();
+    public final LongAdder outboxDropped = new LongAdder();
+
+    // telegram bot api
+    public final LongAdder sent = new LongAdder();
+    public final LongAdder failed = new LongAdder();
+    public final LongAdder throttled = new LongAdder();
+    public final LongAdder rejected = new LongAdder();
+    public final LongAdder retried = new LongAdder();
+    public final LongAdder gaveUp = new LongAdder();
+    public final LatencyHistogram latency = new LatencyHistogram();
+
+    private long lastDropped;
+
+    public static PluginMetrics get() {
+        return instance;
+    }
+
+    /**
+     * One line summary of the counts since the previous call.
+     */
+    public synchronized String report(AlertDispatcher dispatcher, TelegramSender sender, AlertSpool spool) {
+        StringBuilder sb = new StringBuilder(256);
+        sb.append("[TelegramPlugin] alerts received=").append(received.sumThenReset())
+          .append(" below_level=").append(belowLevel.sumThenReset())
+          .append(" ignored(name/level/title/message)=").append(ignoredName.sumThenReset())
+          .append('/').append(ignoredLevel.sumThenReset())
+          .append('/').append(ignoredTitle.sumThenReset())
+          .append('/').append(ignoredMessage.sumThenReset())
+          .append(" duplicated=").append(duplicated.sumThenReset())
+          .append(" unrouted=").append(unrouted.sumThenReset())
+          .append(" batched=").append(batched.sumThenReset());
+
+        if (dispatcher != null) {
+            long dropped = dispatcher.getDroppedCount();
+            sb.append(" dropped=").append(dropped - lastDropped)
+              .append(" queue=").append(dispatcher.getQueueSize());
+            lastDropped = dropped;
+        }
+        if (sender != null) {
+            sb.append(" outbox=").append(sender.getQueueSize())
+              .append(" outbox_dropped=").append(outboxDropped.sumThenReset());
+        }
+        if (spool != null) {
+            sb.append(" spooled=").append(spooled.sumThenReset())
+              .append(" spool_bytes=").append(spool.getPendingBytes());
+        }
+
+        sb.append(" | messages sent=").append(sent.sumThenReset())
+          .append(" failed=").append(failed.sumThenReset())
+          .append(" throttled=").append(throttled.sumThenReset())
+          .append(" rejected=").append(rejected.sumThenReset())
+          .append(" retried=").append(retried.sumThenReset())
+          .append(" gave_up=").append(gaveUp.sumThenReset());
+
+        LatencyHistogram.Snapshot s = latency.snapshotAndReset();
+        sb.append(" | latency(ms) n=").append(s.count())
+          .append(" p50=").append(s.percentile(50))
+          .append(" p95=").append(s.percentile(95))
+          .append(" p99=").append(s.percentile(99))
+          .append(" max=").append(s.max);
+
+        return sb.toString();
+    }
+}
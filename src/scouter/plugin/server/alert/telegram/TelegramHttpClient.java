@@ -0,0 +1,217 @@
+/*
+ *  Copyright 2016 Scouter Project.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package scouter.plugin.server.alert.telegram;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.HttpHost;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.impl.nio.client.HttpAsyncClientBuilder;
+import org.apache.http.impl.nio.client.HttpAsyncClients;
+import org.apache.http.impl.nio.conn.PoolingNHttpClientConnectionManager;
+import org.apache.http.impl.nio.reactor.DefaultConnectingIOReactor;
+import org.apache.http.impl.nio.reactor.IOReactorConfig;
+import org.apache.http.protocol.HttpContext;
+
+import scouter.server.Logger;
+
+/**
+ * Holder of the long-lived, pooled keep-alive http clients used to call the telegram bot api : the blocking one,
+ * and the non-blocking one of the async delivery mode (one I/O thread, callbacks instead of waiting threads).
+ * A client is rebuilt only when the bot token, the proxy or the connection settings are changed.
+ * A replaced client is closed only after the longest request it may still be executing, so the sends
+ * in flight on it are not failed by the rebuild.
+ */
+public class TelegramHttpClient {
+
+    private CloseableHttpClient client;
+    private String clientKey;
+    // how long a request of the current client can take, by its timeouts
+    private long clientRequestMillis;
+
+    private CloseableHttpAsyncClient asyncClient;
+    private String asyncClientKey;
+    private long asyncClientRequestMillis;
+
+    private ScheduledThreadPoolExecutor closer;
+
+    /**
+     * Returns the shared client, building a new one if the token, proxy or connection settings were changed.
+     */
+    public synchronized CloseableHttpClient get(TelegramPluginConfig c) {
+        if (client == null || !c.httpClientKey.equals(clientKey)) {
+            retire(client, clientRequestMillis);
+            client = build(c);
+            clientKey = c.httpClientKey;
+            clientRequestMillis = requestMillis(c);
+        }
+
+        return client;
+    }
+
+    /**
+     * Returns the shared non-blocking client, started, building a new one if the token, proxy, connection settings
+     * or the maximum requests in flight were changed.
+     */
+    public synchronized CloseableHttpAsyncClient getAsync(TelegramPluginConfig c) throws IOException {
+        String key = c.httpClientKey + "|" + c.asyncMaxInFlight;
+        if (asyncClient == null || !key.equals(asyncClientKey)) {
+            retire(asyncClient, asyncClientRequestMillis);
+            asyncClient = null;
+            CloseableHttpAsyncClient created = buildAsync(c);
+            created.start();
+            asyncClient = created;
+            asyncClientKey = key;
+            asyncClientRequestMillis = requestMillis(c);
+        }
+
+        return asyncClient;
+    }
+
+    public synchronized void close() {
+        if (closer != null) {
+            // closes the retired clients right away
+            for (Runnable r : closer.shutdownNow()) {
+                r.run();
+            }
+            closer = null;
+        }
+        closeQuietly(client);
+        client = null;
+        clientKey = null;
+        closeQuietly(asyncClient);
+        asyncClient = null;
+        asyncClientKey = null;
+    }
+
+    /**
+     * Close a replaced client once the requests it may be executing are timed out.
+     */
+    private void retire(final Closeable old, long delayMillis) {
+        if (old == null) {
+            return;
+        }
+        if (closer == null) {
+            closer = new ScheduledThreadPoolExecutor(1, new AlertDispatcher.DaemonThreadFactory("telegram-http-closer"));
+        }
+        closer.schedule(new Runnable() {
+            @Override
+            public void run() {
+                closeQuietly(old);
+            }
+        }, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Upper bound of one request : waiting for a pooled connection, connecting and reading the response.
+     */
+    private static long requestMillis(TelegramPluginConfig c) {
+        return 2L * c.httpConnectTimeout + c.httpReadTimeout + 1000;
+    }
+
+    private CloseableHttpClient build(TelegramPluginConfig c) {
+        final long keepAliveMillis = c.httpKeepAliveMillis;
+
+        PoolingHttpClientConnectionManager cm = new PoolingHttpClientConnectionManager();
+        cm.setMaxTotal(c.httpMaxConnections);
+        cm.setDefaultMaxPerRoute(c.httpMaxConnections);
+        cm.setValidateAfterInactivity(2000);
+
+        HttpClientBuilder builder = HttpClientBuilder.create()
+                .setConnectionManager(cm)
+                .setDefaultRequestConfig(requestConfig(c))
+                .setKeepAliveStrategy(keepAliveStrategy(c))
+                .evictExpiredConnections()
+                .evictIdleConnections(keepAliveMillis, TimeUnit.MILLISECONDS);
+
+        if (hasProxy(c)) {
+            builder.setProxy(new HttpHost(c.proxyHost.trim(), c.proxyPort));
+        }
+
+        return builder.build();
+    }
+
+    private CloseableHttpAsyncClient buildAsync(TelegramPluginConfig c) throws IOException {
+        IOReactorConfig ioConfig = IOReactorConfig.custom()
+                .setIoThreadCount(1)
+                .setConnectTimeout(c.httpConnectTimeout)
+                .setSoTimeout(c.httpReadTimeout)
+                .setTcpNoDelay(true)
+                .build();
+
+        // a connection per request in flight, the pool closes the connections kept longer than the keep-alive
+        PoolingNHttpClientConnectionManager cm = new PoolingNHttpClientConnectionManager(new DefaultConnectingIOReactor(ioConfig));
+        cm.setMaxTotal(c.asyncMaxInFlight);
+        cm.setDefaultMaxPerRoute(c.asyncMaxInFlight);
+
+        HttpAsyncClientBuilder builder = HttpAsyncClients.custom()
+                .setConnectionManager(cm)
+                .setDefaultRequestConfig(requestConfig(c))
+                .setKeepAliveStrategy(keepAliveStrategy(c));
+
+        if (hasProxy(c)) {
+            builder.setProxy(new HttpHost(c.proxyHost.trim(), c.proxyPort));
+        }
+
+        return builder.build();
+    }
+
+    private static RequestConfig requestConfig(TelegramPluginConfig c) {
+        return RequestConfig.custom()
+                .setConnectTimeout(c.httpConnectTimeout)
+                .setSocketTimeout(c.httpReadTimeout)
+                .setConnectionRequestTimeout(c.httpConnectTimeout)
+                .build();
+    }
+
+    /**
+     * Honor the server's Keep-Alive header but never keep a connection longer than configured.
+     */
+    private static ConnectionKeepAliveStrategy keepAliveStrategy(TelegramPluginConfig c) {
+        final long keepAliveMillis = c.httpKeepAliveMillis;
+        return new DefaultConnectionKeepAliveStrategy() {
+            @Override
+            public long getKeepAliveDuration(HttpResponse response, HttpContext context) {
+                long duration = super.getKeepAliveDuration(response, context);
+                return duration > 0 && duration < keepAliveMillis ? duration : keepAliveMillis;
+            }
+        };
+    }
+
+    private static boolean hasProxy(TelegramPluginConfig c) {
+        return c.proxyHost != null && c.proxyHost.trim().length() > 0 && c.proxyPort > 0;
+    }
+
+    private static void closeQuietly(Closeable c) {
+        if (c != null) {
+            try {
+                c.close();
+            } catch (IOException e) {
+                Logger.println("[TelegramPlugin] failed to close http client : " + e.getMessage());
+            }
+        }
+    }
+}
@@ -17,41 +17,30 @@
  */
 package scouter.plugin.server.alert.telegram;
 
-import java.util.ArrayList;
-import java.util.List;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 
-import org.apache.http.HttpResponse;
-import org.apache.http.HttpStatus;
-import org.apache.http.client.methods.HttpPost;
-import org.apache.http.entity.StringEntity;
-import org.apache.http.impl.client.CloseableHttpClient;
-import org.apache.http.impl.client.HttpClientBuilder;
-import org.apache.http.util.EntityUtils;
-
-import com.google.gson.Gson;
-
 import scouter.lang.AlertLevel;
 import scouter.lang.TextTypes;
 import scouter.lang.TimeTypeEnum;
 import scouter.lang.counters.CounterConstants;
 import scouter.lang.pack.AlertPack;
-import scouter.lang.pack.MapPack;
 import scouter.lang.pack.ObjectPack;
 import scouter.lang.pack.PerfCounterPack;
 import scouter.lang.pack.XLogPack;
 import scouter.lang.plugin.PluginConstants;
 import scouter.lang.plugin.annotation.ServerPlugin;
-import scouter.net.RequestCmd;
 import scouter.server.Configure;
-import scouter.server.CounterManager;
 import scouter.server.Logger;
 import scouter.server.core.AgentManager;
-import scouter.server.db.TextRD;
-import scouter.server.netio.AgentCall;
 import scouter.util.DateUtil;
 import scouter.util.HashUtil;
 
@@ -66,189 +55,452 @@ public class TelegramPlugin {
     final Configure conf = Configure.getInstance();
 
     private static AtomicInteger ai = new AtomicInteger(0);
-    private static List<Integer> javaeeObjHashList = new ArrayList<Integer>();
-    private static AlertPack lastPack;
-    private static long lastSentTimestamp;
+    private static ThreadCountPoller threadCountPoller;
+    private static final String DUP_SUMMARY_TITLE = "Duplicate alerts suppressed.";
+    private static final String XLOG_SUMMARY_TITLE = "xlog Error summary";
+    private static final String HEAP_RAISED_TITLE = "Heap used exceed a threshold.";
+    private static final String HEAP_CLEARED_TITLE = "Heap used recovered.";
+    private static final String GC_RAISED_TITLE = "GC time exceed a threshold.";
+    private static final String GC_CLEARED_TITLE = "GC time recovered.";
+    private static final String BASELINE_RAISED_TITLE = "Elapsed time deviates from the baseline.";
+    private static final String BASELINE_CLEARED_TITLE = "Elapsed time is back to the baseline.";
+    // summaries carry their own counts, flapping hosts their own backoff, and a raise or a recovery
+    // is a change of state which must not be hidden behind the one before it
+    private static final Set<String> UNSUPPRESSED_TITLES = new HashSet<String>(Arrays.asList(
+            DUP_SUMMARY_TITLE, XLOG_SUMMARY_TITLE, HostCorrelator.FLAPPING_TITLE, HostCorrelator.STABLE_TITLE,
+            HEAP_RAISED_TITLE, HEAP_CLEARED_TITLE, GC_RAISED_TITLE, GC_CLEARED_TITLE,
+            BASELINE_RAISED_TITLE, BASELINE_CLEARED_TITLE));
+    private static final String ACTIVATED_TITLE = "An object has been activated.";
+    private static AlertDispatcher dispatcher;
+    private static TelegramHttpClient httpClient;
+    private static TelegramSender sender;
+    private static AlertSpool spool;
+
+    // alert pipeline counters, written to the log every ext_plugin_telegram_metrics_interval_ms
+    private static final PluginMetrics metrics = PluginMetrics.get();
+    private static XLogRouter xlogRouter;
+    private static DestinationRouter destinationRouter;
+    private static ObjectProfileCache objectProfiles;
+
+    // breached state of heap / gc time per object
+    private static final ThresholdEvaluator heapEvaluator = new ThresholdEvaluator();
+    private static final ThresholdEvaluator gcEvaluator = new ThresholdEvaluator();
+
+    // elapsed time baseline per (agent, service) (ext_plugin_elapsed_baseline_enabled)
+    private static final ElapsedBaselineTracker elapsedBaselines = new ElapsedBaselineTracker();
+
+    // service / error texts of xlog, keyed by (date, hash)
+    private static final TextCache serviceTextCache = new TextCache(TextTypes.SERVICE, 5000);
+    private static final TextCache errorTextCache = new TextCache(TextTypes.ERROR, 5000);
+
+    // digest per destination of alerts waiting for the flush window (ext_plugin_telegram_batch_enabled)
+    private static final ConcurrentHashMap<String, AlertBatcher> batchers = new ConcurrentHashMap<String, AlertBatcher>();
+
+    // duplicate alert windows keyed by (objHash, title[, message])
+    private static final DuplicateSuppressor duplicateSuppressor = new DuplicateSuppressor(new DuplicateSuppressor.Listener() {
+        @Override
+        public void windowClosed(DuplicateSuppressor.Entry entry) {
+            AlertPack ap = new AlertPack();
+
+            ap.level = entry.level;
+            ap.objHash = entry.objHash;
+            ap.title = DUP_SUMMARY_TITLE;
+            ap.message = entry.title + " : " + entry.getSuppressedCount() + " duplicate alert(s) suppressed since "
+                    + DateUtil.timestamp(entry.openedAt) + ".";
+            ap.time = System.currentTimeMillis();
+            ap.objType = entry.objType;
+
+            if (dispatcher != null) {
+                dispatcher.dispatch(ap);
+            }
+        }
+    });
+
+    // xlog errors counted per window (ext_plugin_exception_xlog_aggregate_enabled)
+    private static final XLogErrorAggregator xlogErrorAggregator = new XLogErrorAggregator(new XLogErrorAggregator.Listener() {
+        @Override
+        public void summarized(XLogErrorAggregator.Summary summary) {
+            AlertPack ap = new AlertPack();
+
+            ap.level = AlertLevel.ERROR;
+            ap.title = XLOG_SUMMARY_TITLE;
+            ap.message = xlogSummary(summary);
+            ap.time = System.currentTimeMillis();
+            ap.objType = "scouter";
+
+            // the summary is an alert of its own, sent only as the alerts it summarizes would be
+            if (dispatcher != null && admit(TelegramPluginConfig.get(), ap)) {
+                dispatcher.dispatch(ap);
+            }
+        }
+    });
+
+    // (in)activation alerts grouped per host (ext_plugin_telegram_host_correlation_enabled)
+    private static final HostCorrelator hostCorrelator = new HostCorrelator(new HostCorrelator.Listener() {
+        @Override
+        public void correlated(AlertPack ap) {
+            if (dispatcher != null) {
+                dispatcher.dispatch(ap);
+            }
+        }
+    });
 
     public TelegramPlugin() {
         if (ai.incrementAndGet() == 1) {
-            ScheduledExecutorService executor = Executors.newScheduledThreadPool(1);
+            // immutable snapshot of the plugin configuration
+            TelegramPluginConfig.reload(conf, true);
+
+            // agent to xlog alert group routing table
+            xlogRouter = new XLogRouter(TelegramPluginConfig.get());
+
+            // per object type / family / thresholds used by counter()
+            objectProfiles = new ObjectProfileCache(TelegramPluginConfig.get());
+
+            // shared keep-alive http client for telegram bot api
+            httpClient = new TelegramHttpClient();
+
+            // alert delivery pipeline (bounded queue + fixed worker pool)
+            dispatcher = new AlertDispatcher(new AlertDispatcher.Handler() {
+                @Override
+                public void handle(AlertPack pack) {
+                    send(pack);
+                }
+            }, conf.getInt("ext_plugin_telegram_worker_count", 2),
+               conf.getInt("ext_plugin_telegram_queue_size", 1000),
+               conf.getValue("ext_plugin_telegram_queue_overflow_policy", AlertDispatcher.POLICY_DROP_NEW),
+               conf.getLong("ext_plugin_telegram_shutdown_drain_ms", 3000));
+
+            // alert level / object type / agent name to chat routing
+            destinationRouter = new DestinationRouter(TelegramPluginConfig.get());
+
+            // per chat outbox and rate limit, retries on 429 / 5xx
+            sender = new TelegramSender(httpClient, conf.getInt("ext_plugin_telegram_worker_count", 2));
+
+            // durable spool of undelivered messages (ext_plugin_telegram_spool_enabled, applied on restart)
+            if (TelegramPluginConfig.get().spoolEnabled) {
+                try {
+                    spool = new AlertSpool(new File(TelegramPluginConfig.get().spoolDir), new AlertSpool.Delivery() {
+                        @Override
+                        public void deliver(String destination, String text, Runnable done) {
+                            sender.deliver(destination, text, done);
+                        }
+                    });
+                    sender.setSpool(spool);
+                    spool.start();
+                } catch (IOException e) {
+                    Logger.println("[TelegramPlugin] alert spool is disabled : " + e.getMessage());
+                    spool = null;
+                }
+            }
+
+            Runtime.getRuntime().addShutdownHook(new Thread("telegram-alert-drain") {
+                @Override
+                public void run() {
+                    dispatcher.shutdown();
+                    threadCountPoller.shutdown();
+                    if (spool != null) {
+                        spool.shutdown();
+                    }
+                    sender.shutdown(conf.getLong("ext_plugin_telegram_shutdown_drain_ms", 3000));
+                    httpClient.close();
+                }
+            });
+
+            ScheduledExecutorService executor = Executors.newScheduledThreadPool(1, new AlertDispatcher.DaemonThreadFactory("telegram-plugin-scheduler"));
 
             // thread count check
+            threadCountPoller = new ThreadCountPoller(executor, new AlertDispatcher.Handler() {
+                @Override
+                public void handle(AlertPack pack) {
+                    alert(pack);
+                }
+            }, new ThreadCountPoller.RemovalListener() {
+                @Override
+                public void removed(int objHash) {
+                    forget(objHash);
+                }
+            });
+            executor.scheduleAtFixedRate(threadCountPoller, 0,
+                    TelegramPluginConfig.get().threadCountPollIntervalMillis, TimeUnit.MILLISECONDS);
+
+            // close expired duplicate windows and report their suppressed counts
             executor.scheduleAtFixedRate(new Runnable() {
                 @Override
                 public void run() {
-                    for (int objHash : javaeeObjHashList) {
-                        try {
-                            if (AgentManager.isActive(objHash)) {
-                                ObjectPack objectPack = AgentManager.getAgent(objHash);
-                                MapPack mapPack = new MapPack();
-                                mapPack.put("objHash", objHash);
-
-                                mapPack = AgentCall.call(objectPack, RequestCmd.OBJECT_THREAD_LIST, mapPack);
-
-                                int threadCountThreshold = conf.getInt("ext_plugin_thread_count_threshold", 0);
-                                int threadCount = mapPack.getList("name").size();
-
-                                if (threadCountThreshold != 0 && threadCount > threadCountThreshold) {
-                                    AlertPack ap = new AlertPack();
-
-                                    ap.level = AlertLevel.WARN;
-                                    ap.objHash = objHash;
-                                    ap.title = "Thread count exceed a threshold.";
-                                    ap.message = objectPack.objName + "'s Thread count(" + threadCount + ") exceed a threshold.";
-                                    ap.time = System.currentTimeMillis();
-                                    ap.objType = objectPack.objType;
-
-                                    alert(ap);
-                                }
-                            }
-                        } catch (Exception e) {
-                            // ignore
+                    try {
+                        duplicateSuppressor.evict(System.currentTimeMillis(), TelegramPluginConfig.get().dupWindowMillis);
+                    } catch (Exception e) {
+                        Logger.printStackTrace(e);
+                    }
+                }
+            }, 10, 10, TimeUnit.SECONDS);
+
+            // swap in a new configuration snapshot when scouter.conf is changed (and every minute regardless)
+            executor.scheduleAtFixedRate(new Runnable() {
+                private int ticks;
+
+                @Override
+                public void run() {
+                    try {
+                        if (TelegramPluginConfig.reload(conf, ++ticks % 60 == 0)) {
+                            TelegramPluginConfig c = TelegramPluginConfig.get();
+                            xlogRouter.reload(c);
+                            destinationRouter.reload(c);
+                            objectProfiles.reload(c);
+                            println("[TelegramPlugin] configuration reloaded.");
                         }
+                    } catch (Exception e) {
+                        Logger.printStackTrace(e);
                     }
                 }
-            }, 0, 5, TimeUnit.SECONDS);
+            }, 1, 1, TimeUnit.SECONDS);
+
+            // force spooled messages to disk
+            if (spool != null) {
+                executor.scheduleWithFixedDelay(new Runnable() {
+                    @Override
+                    public void run() {
+                        spool.sync();
+                    }
+                }, 1000, Math.max(10, TelegramPluginConfig.get().spoolFsyncMillis), TimeUnit.MILLISECONDS);
+            }
+
+            // self monitoring
+            executor.scheduleAtFixedRate(new Runnable() {
+                private long lastReport = System.currentTimeMillis();
+
+                @Override
+                public void run() {
+                    try {
+                        long interval = TelegramPluginConfig.get().metricsIntervalMillis;
+                        long now = System.currentTimeMillis();
+                        if (interval > 0 && now - lastReport >= interval) {
+                            lastReport = now;
+                            Logger.println(metrics.report(dispatcher, sender, spool));
+                        }
+                    } catch (Exception e) {
+                        Logger.printStackTrace(e);
+                    }
+                }
+            }, 1, 1, TimeUnit.SECONDS);
+
+            // flush the digest when its window is elapsed
+            executor.scheduleAtFixedRate(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        TelegramPluginConfig c = TelegramPluginConfig.get();
+                        for (AlertBatcher batcher : batchers.values()) {
+                            batcher.flushIfExpired(c.batchWindowMillis, c.batchMaxChars, c.messageTemplate);
+                        }
+                    } catch (Exception e) {
+                        Logger.printStackTrace(e);
+                    }
+                }
+            }, 1, 1, TimeUnit.SECONDS);
+
+            // summarize the xlog errors when their window is elapsed
+            executor.scheduleAtFixedRate(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        TelegramPluginConfig c = TelegramPluginConfig.get();
+                        xlogErrorAggregator.flushIfExpired(c.xlogAggregateWindowMillis, c.xlogAggregateTopN);
+                    } catch (Exception e) {
+                        Logger.printStackTrace(e);
+                    }
+                }
+            }, 1, 1, TimeUnit.SECONDS);
+
+            // send the host groups when their settle window is elapsed
+            executor.scheduleAtFixedRate(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        TelegramPluginConfig c = TelegramPluginConfig.get();
+                        hostCorrelator.flush(c.hostSettleMillis, c.hostFlapCount, c.hostFlapWindowMillis);
+                    } catch (Exception e) {
+                        Logger.printStackTrace(e);
+                    }
+                }
+            }, 1, 1, TimeUnit.SECONDS);
         }
     }
 
     @ServerPlugin(PluginConstants.PLUGIN_SERVER_ALERT)
     public void alert(final AlertPack pack) {
-        if (conf.getBoolean("ext_plugin_telegram_send_alert", false)) {
+        alert(pack, null);
+    }
 
-            // Get log level (0 : INFO, 1 : WARN, 2 : ERROR, 3 : FATAL)
-            int level = conf.getInt("ext_plugin_telegram_level", 0);
+    /**
+     * @param object the object of an activation alert, which may not be registered to the AgentManager yet
+     */
+    private void alert(final AlertPack pack, ObjectPack object) {
+        TelegramPluginConfig c = TelegramPluginConfig.get();
 
-            if (level <= pack.level) {
-                new Thread() {
-                    public void run() {
-                        try {
-                            // Get server configurations for telegram
-                            String token = conf.getValue("ext_plugin_telegram_bot_token");
-                            String chatId = conf.getValue("ext_plugin_telegram_chat_id");
-
-                            assert token != null;
-                            assert chatId != null;
-
-                            // Make a request URL using telegram bot api
-                            String url = "https://api.telegram.org/bot" + token + "/sendMessage";
-
-                            // Get the agent Name
-                            String name = AgentManager.getAgentName(pack.objHash) == null ? "N/A" : (String) AgentManager.getAgentName(pack.objHash);
-
-                            if (name.equals("N/A") && pack.message.endsWith("connected.")) {
-                                int idx = pack.message.indexOf("connected");
-                                if (pack.message.indexOf("reconnected") > -1) {
-                                    name = pack.message.substring(0, idx - 6);
-                                } else {
-                                    name = pack.message.substring(0, idx - 4);
-                                }
-                            }
-
-                            String title = pack.title;
-                            String msg = pack.message;
-                            if (title.equals("INACTIVE_OBJECT")) {
-                                title = "An object has been inactivated.";
-                                msg = pack.message.substring(0, pack.message.indexOf("OBJECT") - 1);
-                            }
-
-                            try {
-                                String ignoreNamePattern = conf.getValue("ext_plugin_ignore_telegram_name_patterns");
-                                String ignoreLevelPattern = conf.getValue("ext_plugin_ignore_telegram_level_patterns");
-                                String ignoreTitlePattern = conf.getValue("ext_plugin_ignore_telegram_title_patterns");
-                                String ignoreMessagePattern = conf.getValue("ext_plugin_ignore_telegram_message_patterns");
-
-                                if (ignoreNamePattern != null && !"".equals(ignoreNamePattern)) {
-                                    for (String pattern : ignoreNamePattern.split(",")) {
-                                        if (name.matches(pattern.replaceAll("\\*", ".*"))) {
-                                            return;
-                                        }
-                                    }
-                                }
-
-                                if (ignoreLevelPattern != null && !"".equals(ignoreLevelPattern)) {
-                                    for (String pattern : ignoreLevelPattern.split(",")) {
-                                        if (AlertLevel.getName(pack.level).matches(pattern.replaceAll("\\*", ".*"))) {
-                                            return;
-                                        }
-                                    }
-                                }
-
-                                if (ignoreTitlePattern != null && !"".equals(ignoreTitlePattern)) {
-                                    for (String pattern : ignoreTitlePattern.split(",")) {
-                                        if (title.matches(pattern.replaceAll("\\*", ".*"))) {
-                                            return;
-                                        }
-                                    }
-                                }
-
-                                if (ignoreMessagePattern != null && !"".equals(ignoreMessagePattern)) {
-                                    for (String pattern : ignoreMessagePattern.split(",")) {
-                                        if (msg.matches(pattern.replaceAll("\\*", ".*")
-                                                .replaceAll("\\(", "\\\\(").replaceAll("\\)", "\\\\)")
-                                                .replaceAll("\\[", "\\\\[").replaceAll("\\]", "\\\\]"))) {
-                                            return;
-                                        }
-                                    }
-                                }
-
-                                if (conf.getBoolean("ext_plugin_ignore_telegram_continuous_dup_alert", false) && lastPack != null) {
-                                    long diff = System.currentTimeMillis() - lastSentTimestamp;
-                                    if (lastPack.objHash == pack.objHash && lastPack.title.equals(pack.title) && diff < DateUtil.MILLIS_PER_HOUR) {
-                                        return;
-                                    }
-                                }
-
-                                lastPack = pack;
-                            } catch (Exception e) {
-                                // ignore
-                                println("[Error] : " + e.getMessage());
-                            }
-
-                            // Make message contents
-                            String contents =   "[TYPE] : " + pack.objType.toUpperCase() + "\n" + 
-                                                "[NAME] : " + name+ "\n" + 
-                                                "[LEVEL] : " + AlertLevel.getName(pack.level) + "\n" + 
-                                                "[TITLE] : " + title + "\n" + 
-                                                "[MESSAGE] : " + msg;
-
-                            Message message = new Message(chatId, contents);
-                            String param = new Gson().toJson(message);
-
-                            HttpPost post = new HttpPost(url);
-                            post.addHeader("Content-Type", "application/json");
-                            //한글 깨짐 방지
-                            post.setEntity(new StringEntity(param, "UTF-8"));
-
-                            CloseableHttpClient client = HttpClientBuilder.create().build();
-
-                            // send the post request
-                            HttpResponse response = client.execute(post);
-
-                            if (response.getStatusLine().getStatusCode() == HttpStatus.SC_OK) {
-                                lastSentTimestamp = System.currentTimeMillis();
-                                println("Telegram message sent to [" + chatId + "] successfully.");
-                            } else {
-                                println("Telegram message sent failed. Verify below information.");
-                                println("[URL] : " + url);
-                                println("[Message] : " + param);
-                                println("[Reason] : " + EntityUtils.toString(response.getEntity(), "UTF-8"));
-                            }
-                        } catch (Exception e) {
-                            println("[Error] : " + e.getMessage());
-
-                            if (conf._trace) {
-                                e.printStackTrace();
-                            }
-                        }
+        if (admit(c, pack)) {
+            if (!c.hostCorrelationEnabled || !correlate(pack, object)) {
+                dispatcher.dispatch(pack);
+            }
+        }
+    }
+
+    /**
+     * @return true if alerts are enabled and the alert is not below the minimum level
+     */
+    private static boolean admit(TelegramPluginConfig c, AlertPack pack) {
+        if (!c.sendAlert) {
+            return false;
+        }
+        metrics.received.increment();
+
+        // log level (0 : INFO, 1 : WARN, 2 : ERROR, 3 : FATAL)
+        // each destination checks its own level afterwards
+        if (c.minLevel <= pack.level) {
+            return true;
+        }
+        metrics.belowLevel.increment();
+        return false;
+    }
+
+    /**
+     * Hand an (in)activation alert to the host correlator.
+     *
+     * @return false if the alert is not an (in)activation or its host is unknown
+     */
+    private static boolean correlate(AlertPack pack, ObjectPack object) {
+        boolean down = "INACTIVE_OBJECT".equals(pack.title);
+        if (!down && !ACTIVATED_TITLE.equals(pack.title)) {
+            return false;
+        }
+        if (object == null) {
+            object = AgentManager.getAgent(pack.objHash);
+        }
+        if (object == null) {
+            return false;
+        }
+        String host = HostCorrelator.host(object.objName, object.address);
+        if (host == null) {
+            return false;
+        }
+        hostCorrelator.add(host, object.objName, pack, down, System.currentTimeMillis());
+        return true;
+    }
+
+    /**
+     * Deliver an alert to telegram. Runs on one of the dispatcher's worker threads.
+     */
+    private void send(final AlertPack pack) {
+        TelegramPluginConfig c = TelegramPluginConfig.get();
+
+        try {
+            // Get the agent Name
+            String name = AgentManager.getAgentName(pack.objHash) == null ? "N/A" : (String) AgentManager.getAgentName(pack.objHash);
+
+            if (name.equals("N/A") && pack.message.endsWith("connected.")) {
+                int idx = pack.message.indexOf("connected");
+                if (pack.message.indexOf("reconnected") > -1) {
+                    name = pack.message.substring(0, idx - 6);
+                } else {
+                    name = pack.message.substring(0, idx - 4);
+                }
+            }
+
+            String title = pack.title;
+            String msg = pack.message;
+            if (title.equals("INACTIVE_OBJECT")) {
+                title = "An object has been inactivated.";
+                msg = pack.message.substring(0, pack.message.indexOf("OBJECT") - 1);
+            }
+
+            try {
+                if (c.ignoreNamePatterns.matches(name)) {
+                    metrics.ignoredName.increment();
+                    return;
+                }
+                if (c.ignoreLevelPatterns.matches(AlertLevel.getName(pack.level))) {
+                    metrics.ignoredLevel.increment();
+                    return;
+                }
+                if (c.ignoreTitlePatterns.matches(title)) {
+                    metrics.ignoredTitle.increment();
+                    return;
+                }
+                if (c.ignoreMessagePatterns.matches(msg)) {
+                    metrics.ignoredMessage.increment();
+                    return;
+                }
+
+                if (c.dupEnabled
+                        && !UNSUPPRESSED_TITLES.contains(pack.title)
+                        && duplicateSuppressor.isDuplicate(pack.objHash, pack.objType, pack.level, pack.title, pack.message,
+                                c.dupIncludeMessage, c.dupWindowMillis, c.dupMaxEntries)) {
+                    metrics.duplicated.increment();
+                    return;
+                }
+            } catch (Exception e) {
+                // ignore
+                println("[Error] : " + e.getMessage());
+            }
+
+            DestinationRouter.Destination[] destinations = destinationRouter.route(pack.objHash, pack.level, pack.objType);
+            if (destinations.length == 0) {
+                metrics.unrouted.increment();
+                return;
+            }
+
+            AlertBatcher.Item item = new AlertBatcher.Item(pack.level, pack.objType, name, title, msg);
+
+            // FATAL alerts are never held back by the digest
+            if (c.batchEnabled && pack.level < AlertLevel.FATAL) {
+                for (DestinationRouter.Destination d : destinations) {
+                    metrics.batched.increment();
+                    batcher(d.name).add(item, c.batchMaxCount, c.batchMaxChars, c.messageTemplate);
+                }
+            } else {
+                String text = c.messageTemplate.render(item);
+                for (DestinationRouter.Destination d : destinations) {
+                    sender.send(d, text);
+                }
+            }
+        } catch (Exception e) {
+            println("[Error] : " + e.getMessage());
+
+            if (c.trace) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private static AlertBatcher batcher(final String destination) {
+        AlertBatcher batcher = batchers.get(destination);
+        if (batcher == null) {
+            AlertBatcher created = new AlertBatcher(new AlertBatcher.Flusher() {
+                @Override
+                public void flush(String text) {
+                    DestinationRouter.Destination d = TelegramPluginConfig.get().destination(destination);
+                    if (d != null) {
+                        sender.send(d, text);
                     }
-                }.start();
+                }
+            });
+            batcher = batchers.putIfAbsent(destination, created);
+            if (batcher == null) {
+                batcher = created;
             }
         }
+        return batcher;
     }
 
     @ServerPlugin(PluginConstants.PLUGIN_SERVER_OBJECT)
     public void object(ObjectPack pack) {
+        // drop cached routes / profiles of an agent whose type is changed
+        xlogRouter.refresh(pack.objHash, pack.objType);
+        destinationRouter.refresh(pack.objHash, pack.objType);
+        if (objectProfiles.refresh(pack.objHash, pack.objType)) {
+            forget(pack.objHash);
+        }
+
         if (pack.version != null && pack.version.length() > 0) {
             AlertPack ap = null;
             ObjectPack op = AgentManager.getAgent(pack.objHash);
@@ -258,7 +510,7 @@ public class TelegramPlugin {
                 ap = new AlertPack();
                 ap.level = AlertLevel.INFO;
                 ap.objHash = pack.objHash;
-                ap.title = "An object has been activated.";
+                ap.title = ACTIVATED_TITLE;
                 ap.message = pack.objName + " is connected.";
                 ap.time = System.currentTimeMillis();
 
@@ -268,18 +520,18 @@ public class TelegramPlugin {
                     ap.objType = "scouter";
                 }
 
-                alert(ap);
+                alert(ap, pack);
             } else if (op.alive == false) {
                 // in case of agent reconnected
                 ap = new AlertPack();
                 ap.level = AlertLevel.INFO;
                 ap.objHash = pack.objHash;
-                ap.title = "An object has been activated.";
+                ap.title = ACTIVATED_TITLE;
                 ap.message = pack.objName + " is reconnected.";
                 ap.time = System.currentTimeMillis();
                 ap.objType = AgentManager.getAgent(pack.objHash).objType;
 
-                alert(ap);
+                alert(ap, pack);
             }
             // inactive state can be handled in alert() method.
         }
@@ -287,106 +539,46 @@ public class TelegramPlugin {
 
     @ServerPlugin(PluginConstants.PLUGIN_SERVER_XLOG)
     public void xlog(XLogPack pack) {
-        if (conf.getBoolean("ext_plugin_exception_xlog_telegram_enabled", false )) {
-            String serviceName = (String) TextRD.getString(DateUtil.datetime(pack.endTime), TextTypes.SERVICE, pack.service);
-            AlertPack ap = new AlertPack();
-            if (pack.error != 0) {
+        TelegramPluginConfig c = TelegramPluginConfig.get();
+
+        if (c.elapsedBaselineEnabled) {
+            ElapsedBaselineTracker.Deviation d = elapsedBaselines.record(pack.objHash, pack.service, pack.elapsed, pack.endTime, c);
+            if (d != null) {
+                deviated(pack, d, c);
+            }
+        }
+
+        if (c.xlogEnabled) {
+            int elapsedThreshold = c.elapsedThreshold;
+            boolean elapsedExceeded = elapsedThreshold != 0 && pack.elapsed > elapsedThreshold;
+
+            // most transactions end here without any allocation
+            if (pack.error == 0 && !elapsedExceeded) {
+                return;
+            }
+
+            String serviceName = serviceTextCache.get(pack.endTime, pack.service);
+
+            // route by the agent's xlog alert group (ext_plugin_exception_xlog_<group>_telegram_enabled)
+            if (pack.error != 0 && c.sendAlert && xlogRouter.route(pack.objHash).enabled
+                    && (!c.xlogAggregateEnabled
+                        || xlogErrorAggregator.add(pack.objHash, pack.service, pack.error, pack.endTime,
+                                c.xlogAggregateMaxEntries, c.xlogAggregateFirstImmediate, c.xlogAggregateSeenTtlMillis))) {
+                // every error, or only the first occurrence of an error when they are aggregated
+                AlertPack ap = new AlertPack();
                 ap.level = AlertLevel.ERROR;
                 ap.objHash = pack.objHash;
                 ap.title = "xlog Error";
-                ap.message = serviceName + " - " + TextRD.getString(DateUtil.datetime(pack.endTime), TextTypes.ERROR, pack.error);
+                ap.message = serviceName + " - " + errorTextCache.get(pack.endTime, pack.error);
                 ap.time = System.currentTimeMillis();
                 ap.objType = "scouter";
-            }
-            // Get agent Name
-            String name = AgentManager.getAgentName(pack.objHash) == null ? "N/A" : (String) AgentManager.getAgentName(pack.objHash);
 
-            if ("/cjescwas01/escprd1".equals(name) || "/cjescwas02/escprd2".equals(name) || "/cjescwasdev/escdev".equals(name)) {
-                if (conf.getBoolean("ext_plugin_exception_xlog_esc_telegram_enabled", false )){
-                    alert(ap);
-                }
-            } else if("/cjwas03/expwas01".equals(name) || "/cjwas04/expwas02".equals(name)) {
-                if (conf.getBoolean("ext_plugin_exception_xlog_exp_telegram_enabled", false )){
-                    alert(ap);
-                }
-            } else if("/cjwas03/igap_was3".equals(name) || "/cjwas04/igap_was4".equals(name)) {
-                if (conf.getBoolean("ext_plugin_exception_xlog_igap_telegram_enabled", false )){
-                    alert(ap);
-                }
-            } else if("/cjwas03/tmsprd1-1".equals(name) || "/cjwas03/tmsprd1-2".equals(name) || "/cjwas04/tmsprd2-1".equals(name) || "/cjwas04/tmsprd2-2".equals(name)) {
-                if (conf.getBoolean("ext_plugin_exception_xlog_tms_telegram_enabled", false )){
-                    alert(ap);
-                }
-            } else if("/gprtwas1/wise_prd11".equals(name) || "/gprtwas1/wise_prd12".equals(name) || "/gprtwas2/wise_prd21".equals(name) || "/gprtwas2/wise_prd22".equals(name)) {
-                if (conf.getBoolean("ext_plugin_exception_xlog_wise_telegram_enabled", false )) {
-                    alert(ap);
-                }
-            } else if("/cjwas03/mproWas03".equals(name) || "/cjwas04/mproWas04".equals(name)) {
-                if (conf.getBoolean("ext_plugin_exception_xlog_mpro_telegram_enabled", false )){
-                    alert(ap);
-                }
-            } else if("/cjwas01/cis1".equals(name) || "/cjwas02/cis2".equals(name)) {
-                if (conf.getBoolean("ext_plugin_exception_xlog_cis_telegram_enabled", false )){
-                    alert(ap);
-                }
-            } else if("/cjodswas01/odsprd01".equals(name) || "/cjodswas02/odsprd02".equals(name)) {
-                if (conf.getBoolean("ext_plugin_exception_xlog_ods_telegram_enabled", false )){
-                    alert(ap);
-                }
-            } else if("/cjpcplwas1/cplwas1".equals(name) || "/cjpcplwas2/cplwas2".equals(name)) {
-                if (conf.getBoolean("ext_plugin_exception_xlog_cpl_telegram_enabled", false )){
-                    alert(ap);
-                }
-            } else if("/cjwas03/qmswas1".equals(name) || "/cjwas04/qmswas2".equals(name)) {
-                if (conf.getBoolean("ext_plugin_exception_xlog_qms_telegram_enabled", false )){
-                    alert(ap);
-                }
-            } else if("/cjirisap1/bmis_was1".equals(name) || "/cjemap/bmis_was2".equals(name)) {
-                if (conf.getBoolean("ext_plugin_exception_xlog_bmis_telegram_enabled", false )){
-                    alert(ap);
-                }
-            } else if("/cjirisap1/iris_was1".equals(name) || "/cjemap/iris_was2".equals(name)) {
-                if (conf.getBoolean("ext_plugin_exception_xlog_iris_telegram_enabled", false )){
-                    alert(ap);
-                }
-            } else if("/pEacA1/PFLS_LIVE1".equals(name) || "/pEacA2/PFLS_LIVE2".equals(name)) {
-                if (conf.getBoolean("ext_plugin_exception_xlog_pfls_telegram_enabled", false )){
-                    alert(ap);
-                }
-            } else if("/cjwas03/amsprd_1".equals(name) || "/cjwas04/amsprd_2".equals(name)) {
-                if (conf.getBoolean("ext_plugin_exception_xlog_ams_telegram_enabled", false )){
-                    alert(ap);
-                }
-            } else if("/cjwas03/cmsprd_1".equals(name) || "/cjwas04/cmsprd_2".equals(name)) {
-                if (conf.getBoolean("ext_plugin_exception_xlog_cms_telegram_enabled", false )){
-                    alert(ap);
-                }
-             } else if("/cjwingswas01/WINGS_PRD1-1".equals(name) || "/cjwingswas01/WINGS_PRD1-2".equals(name) || "/cjwingswas02/WINGS_PRD2-1".equals(name) || "/cjwingswas02/WINGS_PRD2-2".equals(name)) { 
-                if (conf.getBoolean("ext_plugin_exception_xlog_wings_telegram_enabled", false )){
-                    alert(ap);
-                }
-            } else if("/CJHANAROWAS01/HANARO_PRD1".equals(name) || "/CJHANAROWAS02/HANARO_PRD2".equals(name)) {
-                if (conf.getBoolean("ext_plugin_exception_xlog_hanaro_telegram_enabled", false )){
-                    alert(ap);
-                }
-            } else if("/cj-meta-app/cj-meta-app".equals(name)) {
-                if (conf.getBoolean("ext_plugin_exception_xlog_meta_telegram_enabled", false )){
-                    alert(ap);
-                }
-            } else if("/CJFPAAP/fta".equals(name)) {
-                if (conf.getBoolean("ext_plugin_exception_xlog_fta_telegram_enabled", false )){
-                    alert(ap);
-                }
-            } else {
-                if (conf.getBoolean("ext_plugin_exception_xlog_telegram_enabled", false )){
-                    alert(ap);
-                }
-            } 
+                alert(ap);
+            }
 
             try {
-                int elapsedThreshold = conf.getInt("ext_plugin_elapsed_time_threshold", 0);
-
-                if (elapsedThreshold != 0 && pack.elapsed > elapsedThreshold) {
+                if (elapsedExceeded) {
+                    AlertPack ap = new AlertPack();
                     ap.level = AlertLevel.WARN;
                     ap.objHash = pack.objHash;
                     ap.title = "Elapsed time exceed a threshold.";
@@ -404,102 +596,132 @@ public class TelegramPlugin {
         }
     }
 
-    @ServerPlugin(PluginConstants.PLUGIN_SERVER_COUNTER)
-    public void counter(PerfCounterPack pack) {
-        String objName = pack.objName;
-        int objHash = HashUtil.hash(objName);
-        String objType = null;
-        String objFamily = null;
+    private void deviated(XLogPack pack, ElapsedBaselineTracker.Deviation d, TelegramPluginConfig c) {
+        try {
+            AlertPack ap = new AlertPack();
+
+            // same level as the raise, so whoever got the alert also gets the recovery
+            ap.level = AlertLevel.WARN;
+            ap.objHash = pack.objHash;
+            ap.title = d.raised ? BASELINE_RAISED_TITLE : BASELINE_CLEARED_TITLE;
+            ap.message = "[" + AgentManager.getAgentName(pack.objHash) + "] "
+                    + pack.service + "(" + serviceTextCache.get(pack.endTime, pack.service) + ") "
+                    + "p" + c.elapsedBaselinePercentile + " elapsed time(" + d.current + " ms) of the last "
+                    + c.elapsedBaselineWindowMillis / 1000 + " s (" + d.samples + " xlogs) "
+                    + (d.raised ? "exceeds " + c.elapsedBaselineFactorPercent + "% of" : "is back near")
+                    + " its baseline(" + d.baseline + " ms).";
+            ap.time = System.currentTimeMillis();
+            ObjectPack op = AgentManager.getAgent(pack.objHash);
+            ap.objType = op == null ? "scouter" : op.objType;
 
-        if (AgentManager.getAgent(objHash) != null) {
-            objType = AgentManager.getAgent(objHash).objType;
+            alert(ap);
+        } catch (Exception e) {
+            Logger.printStackTrace(e);
         }
+    }
 
-        if (objType != null) {
-            objFamily = CounterManager.getInstance().getCounterEngine().getObjectType(objType).getFamily().getName();
+    private static String xlogSummary(XLogErrorAggregator.Summary s) {
+        StringBuilder sb = new StringBuilder(1024);
+        sb.append(s.errors).append(" error(s) of ").append(s.kinds).append(" kind(s) from ")
+          .append(DateUtil.datetime(s.openedAt)).append(" to ").append(DateUtil.format(s.closedAt, "HH:mm:ss"))
+          .append('.');
+
+        // leave room for the title and the rest of the template
+        int limit = AlertBatcher.TELEGRAM_TEXT_LIMIT - 512;
+        int shown = 0;
+        for (XLogErrorAggregator.Entry e : s.top) {
+            String agentName = AgentManager.getAgentName(e.objHash);
+            String line = "\n" + (shown + 1) + ") " + e.count + " x [" + (agentName == null ? "N/A" : agentName) + "] "
+                    + serviceTextCache.get(e.lastSeen, e.service) + " - " + errorTextCache.get(e.lastSeen, e.error)
+                    + " (" + DateUtil.format(e.firstSeen, "HH:mm:ss") + " ~ " + DateUtil.format(e.lastSeen, "HH:mm:ss") + ")";
+            if (sb.length() + line.length() > limit) {
+                break;
+            }
+            sb.append(line);
+            shown++;
         }
+        if (s.kinds > shown) {
+            sb.append("\n... ").append(s.kinds - shown).append(" more kind(s)");
+        }
+        if (s.overflowed > 0) {
+            sb.append("\n").append(s.overflowed).append(" error(s) are not itemized, ext_plugin_exception_xlog_aggregate_max_entries is reached.");
+        }
+        return sb.toString();
+    }
+
+    @ServerPlugin(PluginConstants.PLUGIN_SERVER_COUNTER)
+    public void counter(PerfCounterPack pack) {
+        String objName = pack.objName;
+        int objHash = HashUtil.hash(objName);
 
         try {
+            ObjectProfileCache.Profile profile = objectProfiles.get(objHash);
+
             // in case of objFamily is javaee
-            if (CounterConstants.FAMILY_JAVAEE.equals(objFamily)) {
+            if (profile != null && profile.javaee) {
                 // save javaee type's objHash
-                if (!javaeeObjHashList.contains(objHash)) {
-                    javaeeObjHashList.add(objHash);
-                }
+                threadCountPoller.register(objHash);
 
                 if (pack.timetype == TimeTypeEnum.REALTIME) {
-                    long gcTimeThreshold = conf.getLong("ext_plugin_gc_time_threshold", 0);
-                    long gcTime = pack.data.getLong(CounterConstants.JAVA_GC_TIME);
+                    // alert on entering / leaving the breached state only (N of last M samples, with hysteresis)
+                    TelegramPluginConfig c = TelegramPluginConfig.get();
+                    int n = c.thresholdBreachCount;
+                    int m = c.thresholdWindowSize;
+                    int clearPercent = c.thresholdClearPercent;
 
-                    long heapUsedThreshold = conf.getLong("ext_plugin_heap_used_threshold", 0);
-                    long heapUsedThreshold_8G = conf.getLong("ext_plugin_8G_heap_used_threshold", 0);
-                    long heapUsedThreshold_6G = conf.getLong("ext_plugin_6G_heap_used_threshold", 0);
-                    long heapUsedThreshold_4G = conf.getLong("ext_plugin_4G_heap_used_threshold", 0);
                     long heapUsed = pack.data.getLong(CounterConstants.JAVA_HEAP_USED);
+                    long heapUsedThreshold = profile.heapUsedThreshold;
 
-                    if("/gprtwas1/wise_prd11".equals(objName) || "/gprtwas1/wise_prd12".equals(objName) || "/gprtwas2/wise_prd21".equals(objName) || "/gprtwas2/wise_prd22".equals(objName)) {
-                        if (heapUsedThreshold_8G != 0 && heapUsed > heapUsedThreshold_8G) {
-                            AlertPack ap = new AlertPack();
+                    int heapState = heapEvaluator.evaluate(objHash, heapUsed, heapUsedThreshold, heapUsedThreshold * clearPercent / 100, n, m);
+                    if (heapState == ThresholdEvaluator.RAISED) {
+                        AlertPack ap = new AlertPack();
 
-                            ap.level = AlertLevel.FATAL;
-                            ap.objHash = objHash;
-                            ap.title = "Heap used exceed a threshold.";
-                            ap.message = objName + " Heap uesd(" + heapUsed + " M) exceed a threshold.";
-                            ap.time = System.currentTimeMillis();
-                            ap.objType = objType;
+                        ap.level = AlertLevel.FATAL;
+                        ap.objHash = objHash;
+                        ap.title = HEAP_RAISED_TITLE;
+                        ap.message = objName + " Heap uesd(" + heapUsed + " M) exceed a threshold.";
+                        ap.time = System.currentTimeMillis();
+                        ap.objType = profile.objType;
 
-                            alert(ap);
-                        }
-                    } else if("/pEacA1/PFLS_LIVE1".equals(objName) || "/pEacA2/PFLS_LIVE2".equals(objName)) {
-                        if (heapUsedThreshold_6G != 0 && heapUsed > heapUsedThreshold_6G) {
-                            AlertPack ap = new AlertPack();
-
-                            ap.level = AlertLevel.FATAL;
-                            ap.objHash = objHash;
-                            ap.title = "Heap used exceed a threshold.";
-                            ap.message = objName + " Heap uesd(" + heapUsed + " M) exceed a threshold.";
-                            ap.time = System.currentTimeMillis();
-                            ap.objType = objType;
-
-                            alert(ap);
-                        }
-                    }else if("/cjwas03/expwas01".equals(objName) || "/cjwas04/expwas02".equals(objName) || "/cjwas03/qmswas1".equals(objName) || "/cjwas04/qmswas2".equals(objName) || "/cjwas03/amsprd_1".equals(objName) || "/cjwas04/amsprd_2".equals(objName) || "/cjwas03/cmsprd_1".equals(objName) || "/cjwas04/cmsprd_2".equals(objName) || "/cjirisap1/bmis_was1".equals(objName) || "/cjirisap1/iris_was1".equals(objName) || "/cjemap/bmis_was2".equals(objName) || "/cjemap/iris_was2".equals(objName)) {
-                        if (heapUsedThreshold_4G != 0 && heapUsed > heapUsedThreshold_4G) {
-                            AlertPack ap = new AlertPack();
-
-                            ap.level = AlertLevel.FATAL;
-                            ap.objHash = objHash;
-                            ap.title = "Heap used exceed a threshold.";
-                            ap.message = objName + " Heap uesd(" + heapUsed + " M) exceed a threshold.";
-                            ap.time = System.currentTimeMillis();
-                            ap.objType = objType;
-
-                            alert(ap);
-                        }
-                    } else {
-                        if (heapUsedThreshold != 0 && heapUsed > heapUsedThreshold) {
-                            AlertPack ap = new AlertPack();
-
-                            ap.level = AlertLevel.FATAL;
-                            ap.objHash = objHash;
-                            ap.title = "Heap used exceed a threshold.";
-                            ap.message = objName + " Heap uesd(" + heapUsed + " M) exceed a threshold.";
-                            ap.time = System.currentTimeMillis();
-                            ap.objType = objType;
-
-                            alert(ap);
-                        }
+                        alert(ap);
+                    } else if (heapState == ThresholdEvaluator.CLEARED) {
+                        AlertPack ap = new AlertPack();
+
+                        // same level as the raise, so whoever got the alert also gets the recovery
+                        ap.level = AlertLevel.FATAL;
+                        ap.objHash = objHash;
+                        ap.title = HEAP_CLEARED_TITLE;
+                        ap.message = objName + " Heap uesd(" + heapUsed + " M) is back below the threshold.";
+                        ap.time = System.currentTimeMillis();
+                        ap.objType = profile.objType;
+
+                        alert(ap);
                     }
 
-                    if (gcTimeThreshold != 0 && gcTime > gcTimeThreshold) {
+                    long gcTime = pack.data.getLong(CounterConstants.JAVA_GC_TIME);
+                    long gcTimeThreshold = profile.gcTimeThreshold;
+
+                    int gcState = gcEvaluator.evaluate(objHash, gcTime, gcTimeThreshold, gcTimeThreshold * clearPercent / 100, n, m);
+                    if (gcState == ThresholdEvaluator.RAISED) {
                         AlertPack ap = new AlertPack();
 
                         ap.level = AlertLevel.WARN;
                         ap.objHash = objHash;
-                        ap.title = "GC time exceed a threshold.";
+                        ap.title = GC_RAISED_TITLE;
                         ap.message = objName + "'s GC time(" + gcTime + " ms) exceed a threshold.";
                         ap.time = System.currentTimeMillis();
-                        ap.objType = objType;
+                        ap.objType = profile.objType;
+
+                        alert(ap);
+                    } else if (gcState == ThresholdEvaluator.CLEARED) {
+                        AlertPack ap = new AlertPack();
+
+                        ap.level = AlertLevel.WARN;
+                        ap.objHash = objHash;
+                        ap.title = GC_CLEARED_TITLE;
+                        ap.message = objName + "'s GC time(" + gcTime + " ms) is back below the threshold.";
+                        ap.time = System.currentTimeMillis();
+                        ap.objType = profile.objType;
 
                         alert(ap);
                     }
@@ -510,8 +732,16 @@ public class TelegramPlugin {
         }
     }
 
+    /**
+     * Drop the threshold state of an agent which is removed from the server or whose type is changed.
+     */
+    private static void forget(int objHash) {
+        heapEvaluator.remove(objHash);
+        gcEvaluator.remove(objHash);
+    }
+
     private void println(Object o) {
-        if (conf.getBoolean("ext_plugin_telegram_debug", false)) {
+        if (TelegramPluginConfig.get().debug) {
             Logger.println(o);
         }
     }
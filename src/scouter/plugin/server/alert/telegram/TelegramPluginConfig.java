@@ -0,0 +1,450 @@
+/*
+ *  Copyright 2016 Scouter Project.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package scouter.plugin.server.alert.telegram;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import scouter.lang.AlertLevel;
+import scouter.server.Configure;
+import scouter.util.DateUtil;
+
+/**
+ * Immutable snapshot of the plugin configuration.
+ * It is built from {@link Configure} once and replaced as a whole when the configuration is changed,
+ * so hot paths read every setting through a single volatile reference instead of a Configure lookup per key.
+ * Derived structures (compiled patterns, routing rules, the request url) are precomputed here.
+ */
+public final class TelegramPluginConfig {
+
+    private static final long RECHECK_MILLIS = 10000;
+
+    private static volatile TelegramPluginConfig current;
+    private static long seenModified;
+    private static long recheckUntil;
+
+    // alert
+    public final boolean sendAlert;
+    public final int level;
+    public final boolean debug;
+    public final boolean trace;
+    public final long metricsIntervalMillis;
+
+    // telegram
+    public final String botToken;
+    public final String chatId;
+    public final String apiUrl;
+    public final String sendMessageUrl;
+    public final MessageTemplate messageTemplate;
+
+    // destinations
+    public final DestinationRouter.Destination[] destinations;
+    /** ext_plugin_telegram_chat_id, or null if it is not set */
+    public final DestinationRouter.Destination defaultDestination;
+    public final String destinationSignature;
+    /** the lowest level any destination accepts */
+    public final int minLevel;
+
+    // ignore patterns
+    public final WildcardMatcher ignoreNamePatterns;
+    public final WildcardMatcher ignoreLevelPatterns;
+    public final WildcardMatcher ignoreTitlePatterns;
+    public final WildcardMatcher ignoreMessagePatterns;
+
+    // duplicate suppression
+    public final boolean dupEnabled;
+    public final boolean dupIncludeMessage;
+    public final long dupWindowMillis;
+    public final int dupMaxEntries;
+
+    // digest
+    public final boolean batchEnabled;
+    public final long batchWindowMillis;
+    public final int batchMaxCount;
+    public final int batchMaxChars;
+
+    // host correlation
+    /** collapse the (in)activation alerts of the objects of a host into one alert, and hold them back while it flaps */
+    public final boolean hostCorrelationEnabled;
+    public final long hostSettleMillis;
+    public final int hostFlapCount;
+    public final long hostFlapWindowMillis;
+
+    // rate limit & retry
+    public final int ratePerMin;
+    public final int rateBurst;
+    public final int retryMaxAttempts;
+    public final long retryBackoffMillis;
+    public final long retryBackoffMaxMillis;
+
+    // spool
+    public final boolean spoolEnabled;
+    public final String spoolDir;
+    public final long spoolSegmentBytes;
+    public final long spoolMaxBytes;
+    public final long spoolMaxAgeMillis;
+    public final long spoolFsyncMillis;
+
+    // http client
+    public final String proxyHost;
+    public final int proxyPort;
+    public final int httpConnectTimeout;
+    public final int httpReadTimeout;
+    public final int httpMaxConnections;
+    public final long httpKeepAliveMillis;
+    /** the http client is rebuilt when this key is changed */
+    public final String httpClientKey;
+    /** deliver through the non-blocking httpasyncclient instead of the pooled blocking client */
+    public final boolean asyncDelivery;
+    public final int asyncMaxInFlight;
+    public final int asyncInFlightPerChat;
+
+    // xlog
+    public final boolean xlogEnabled;
+    public final int elapsedThreshold;
+    /** alert when the elapsed time percentile of a service deviates from its own baseline */
+    public final boolean elapsedBaselineEnabled;
+    public final long elapsedBaselineWindowMillis;
+    public final int elapsedBaselinePercentile;
+    public final int elapsedBaselineFactorPercent;
+    /** a deviation is recovered below this percent of its raise level */
+    public final int elapsedBaselineClearPercent;
+    public final int elapsedBaselineMinSamples;
+    public final int elapsedBaselineMinElapsed;
+    public final int elapsedBaselineHistoryWindows;
+    public final int elapsedBaselineMaxServices;
+    public final XLogRouter.Rule[] xlogRules;
+    public final int xlogRouteCacheSize;
+    public final String xlogRouteSignature;
+    /** count xlog errors per window and send the top-N of the window instead of one alert per error */
+    public final boolean xlogAggregateEnabled;
+    public final long xlogAggregateWindowMillis;
+    public final int xlogAggregateTopN;
+    public final int xlogAggregateMaxEntries;
+    public final boolean xlogAggregateFirstImmediate;
+    public final long xlogAggregateSeenTtlMillis;
+
+    // counter
+    public final ObjectProfileCache.HeapRule[] heapRules;
+    public final long heapUsedThreshold;
+    public final long gcTimeThreshold;
+    public final String heapRuleSignature;
+    public final int thresholdBreachCount;
+    public final int thresholdWindowSize;
+    public final int thresholdClearPercent;
+
+    // thread count
+    public final int threadCountThreshold;
+    public final long threadCountPollTimeoutMillis;
+    /** applied on restart */
+    public final long threadCountPollIntervalMillis;
+    /** applied on restart */
+    public final int threadCountPollConcurrency;
+
+    private final String signature;
+
+    private TelegramPluginConfig(Configure conf) {
+        Reader r = new Reader(conf);
+
+        this.sendAlert = r.getBoolean("ext_plugin_telegram_send_alert", false);
+        this.level = r.getInt("ext_plugin_telegram_level", 0);
+        this.debug = r.getBoolean("ext_plugin_telegram_debug", false);
+        this.trace = conf._trace;
+        this.metricsIntervalMillis = r.getLong("ext_plugin_telegram_metrics_interval_ms", 60000);
+
+        this.botToken = r.getValue("ext_plugin_telegram_bot_token", null);
+        this.chatId = r.getValue("ext_plugin_telegram_chat_id", null);
+        String apiUrl = r.getValue("ext_plugin_telegram_api_url", "https://api.telegram.org").trim();
+        while (apiUrl.endsWith("/")) {
+            apiUrl = apiUrl.substring(0, apiUrl.length() - 1);
+        }
+        this.apiUrl = apiUrl;
+        this.sendMessageUrl = apiUrl + "/bot" + botToken + "/sendMessage";
+        this.messageTemplate = MessageTemplate.compile(r.getValue("ext_plugin_telegram_message_template", null),
+                r.getValue("ext_plugin_telegram_parse_mode", null));
+
+        this.ignoreNamePatterns = WildcardMatcher.compile(r.getValue("ext_plugin_ignore_telegram_name_patterns", null));
+        this.ignoreLevelPatterns = WildcardMatcher.compile(r.getValue("ext_plugin_ignore_telegram_level_patterns", null));
+        this.ignoreTitlePatterns = WildcardMatcher.compile(r.getValue("ext_plugin_ignore_telegram_title_patterns", null));
+        this.ignoreMessagePatterns = WildcardMatcher.compile(r.getValue("ext_plugin_ignore_telegram_message_patterns", null));
+
+        this.dupEnabled = r.getBoolean("ext_plugin_ignore_telegram_continuous_dup_alert", false);
+        this.dupIncludeMessage = r.getBoolean("ext_plugin_telegram_dup_include_message", false);
+        this.dupWindowMillis = r.getLong("ext_plugin_telegram_dup_window_ms", DateUtil.MILLIS_PER_HOUR);
+        this.dupMaxEntries = r.getInt("ext_plugin_telegram_dup_max_entries", 10000);
+
+        this.batchEnabled = r.getBoolean("ext_plugin_telegram_batch_enabled", false);
+        this.batchWindowMillis = r.getLong("ext_plugin_telegram_batch_window_ms", 10000);
+        this.batchMaxCount = r.getInt("ext_plugin_telegram_batch_max_count", 50);
+        this.batchMaxChars = r.getInt("ext_plugin_telegram_batch_max_chars", AlertBatcher.TELEGRAM_TEXT_LIMIT);
+
+        this.hostCorrelationEnabled = r.getBoolean("ext_plugin_telegram_host_correlation_enabled", false);
+        this.hostSettleMillis = r.getLong("ext_plugin_telegram_host_settle_ms", 10000);
+        this.hostFlapCount = Math.max(2, r.getInt("ext_plugin_telegram_host_flap_count", 4));
+        this.hostFlapWindowMillis = r.getLong("ext_plugin_telegram_host_flap_window_ms", DateUtil.MILLIS_PER_TEN_MINUTE);
+
+        this.ratePerMin = r.getInt("ext_plugin_telegram_rate_per_min", 20);
+        this.rateBurst = r.getInt("ext_plugin_telegram_rate_burst", 5);
+        this.retryMaxAttempts = r.getInt("ext_plugin_telegram_retry_max_attempts", 5);
+        this.retryBackoffMillis = r.getLong("ext_plugin_telegram_retry_backoff_ms", 1000);
+        this.retryBackoffMaxMillis = r.getLong("ext_plugin_telegram_retry_backoff_max_ms", 60000);
+
+        this.spoolEnabled = r.getBoolean("ext_plugin_telegram_spool_enabled", false);
+        this.spoolDir = r.getValue("ext_plugin_telegram_spool_dir", new File(conf.db_dir, "telegram_spool").getPath());
+        this.spoolSegmentBytes = r.getLong("ext_plugin_telegram_spool_segment_bytes", 4L * 1024 * 1024);
+        this.spoolMaxBytes = r.getLong("ext_plugin_telegram_spool_max_bytes", 64L * 1024 * 1024);
+        this.spoolMaxAgeMillis = r.getLong("ext_plugin_telegram_spool_max_age_ms", 24 * DateUtil.MILLIS_PER_HOUR);
+        this.spoolFsyncMillis = r.getLong("ext_plugin_telegram_spool_fsync_ms", 1000);
+
+        int mark = r.mark();
+        this.defaultDestination = chatId == null || chatId.trim().length() == 0 ? null
+                : new DestinationRouter.Destination(DestinationRouter.DEFAULT, chatId, botToken, sendMessageUrl, level,
+                        WildcardMatcher.compile(null), WildcardMatcher.compile(null), ratePerMin, rateBurst,
+                        r.getInt("ext_plugin_telegram_queue_size_per_chat", 1000));
+        int minLevel = defaultDestination == null ? AlertLevel.FATAL + 1 : level;
+        List<DestinationRouter.Destination> destinations = new ArrayList<DestinationRouter.Destination>();
+        String names = r.getValue("ext_plugin_telegram_destinations", null);
+        if (names != null) {
+            for (String name : names.split(",")) {
+                name = name.trim();
+                if (name.length() == 0 || DestinationRouter.DEFAULT.equals(name)) {
+                    continue;
+                }
+                DestinationRouter.Destination d = destination(r, name);
+                if (d != null) {
+                    destinations.add(d);
+                    minLevel = Math.min(minLevel, d.level);
+                }
+            }
+        }
+        this.destinations = destinations.toArray(new DestinationRouter.Destination[destinations.size()]);
+        this.minLevel = minLevel;
+        // the default destination and the defaults of the others come from the global settings
+        this.destinationSignature = chatId + "|" + botToken + "|" + apiUrl + "|" + level + "|" + ratePerMin + "|" + rateBurst
+                + "\n" + r.since(mark);
+
+        this.proxyHost = r.getValue("ext_plugin_telegram_proxy_host", null);
+        this.proxyPort = r.getInt("ext_plugin_telegram_proxy_port", 0);
+        this.httpConnectTimeout = r.getInt("ext_plugin_telegram_http_connect_timeout_ms", 3000);
+        this.httpReadTimeout = r.getInt("ext_plugin_telegram_http_read_timeout_ms", 5000);
+        this.httpMaxConnections = r.getInt("ext_plugin_telegram_http_max_connections", 10);
+        this.httpKeepAliveMillis = r.getLong("ext_plugin_telegram_http_keep_alive_ms", 60000);
+        this.httpClientKey = botToken + "|" + proxyHost + "|" + proxyPort + "|" + httpConnectTimeout + "|" + httpReadTimeout
+                + "|" + httpMaxConnections + "|" + httpKeepAliveMillis;
+        this.asyncDelivery = "async".equalsIgnoreCase(r.getValue("ext_plugin_telegram_delivery_mode", "sync").trim());
+        this.asyncMaxInFlight = Math.max(1, r.getInt("ext_plugin_telegram_async_max_in_flight", 64));
+        this.asyncInFlightPerChat = Math.max(1, r.getInt("ext_plugin_telegram_async_in_flight_per_chat", 1));
+
+        this.xlogEnabled = r.getBoolean("ext_plugin_exception_xlog_telegram_enabled", false);
+        this.elapsedThreshold = r.getInt("ext_plugin_elapsed_time_threshold", 0);
+        this.elapsedBaselineEnabled = r.getBoolean("ext_plugin_elapsed_baseline_enabled", false);
+        this.elapsedBaselineWindowMillis = r.getLong("ext_plugin_elapsed_baseline_window_ms", 60000);
+        this.elapsedBaselinePercentile = Math.min(100, Math.max(1, r.getInt("ext_plugin_elapsed_baseline_percentile", 95)));
+        this.elapsedBaselineFactorPercent = r.getInt("ext_plugin_elapsed_baseline_factor_percent", 200);
+        this.elapsedBaselineClearPercent = r.getInt("ext_plugin_elapsed_baseline_clear_percent", r.getInt("ext_plugin_threshold_clear_percent", 90));
+        this.elapsedBaselineMinSamples = r.getInt("ext_plugin_elapsed_baseline_min_samples", 50);
+        this.elapsedBaselineMinElapsed = r.getInt("ext_plugin_elapsed_baseline_min_elapsed_ms", 100);
+        this.elapsedBaselineHistoryWindows = r.getInt("ext_plugin_elapsed_baseline_history_windows", 30);
+        this.elapsedBaselineMaxServices = r.getInt("ext_plugin_elapsed_baseline_max_services", 10000);
+
+        mark = r.mark();
+        List<XLogRouter.Rule> xlogRules = new ArrayList<XLogRouter.Rule>();
+        String groups = r.getValue("ext_plugin_exception_xlog_groups", null);
+        if (groups == null || groups.trim().length() == 0) {
+            for (String[] g : XLogRouter.DEFAULT_GROUPS) {
+                xlogRules.add(xlogRule(r, g[0], g[1]));
+            }
+        } else {
+            for (String g : groups.split(",")) {
+                g = g.trim();
+                if (g.length() > 0) {
+                    xlogRules.add(xlogRule(r, g, null));
+                }
+            }
+        }
+        this.xlogRules = xlogRules.toArray(new XLogRouter.Rule[xlogRules.size()]);
+        this.xlogRouteCacheSize = r.getInt("ext_plugin_exception_xlog_route_cache_size", 10000);
+        this.xlogRouteSignature = r.since(mark);
+        this.xlogAggregateEnabled = r.getBoolean("ext_plugin_exception_xlog_aggregate_enabled", false);
+        this.xlogAggregateWindowMillis = r.getLong("ext_plugin_exception_xlog_aggregate_window_ms", 60000);
+        this.xlogAggregateTopN = r.getInt("ext_plugin_exception_xlog_aggregate_top_n", 10);
+        this.xlogAggregateMaxEntries = r.getInt("ext_plugin_exception_xlog_aggregate_max_entries", 10000);
+        this.xlogAggregateFirstImmediate = r.getBoolean("ext_plugin_exception_xlog_aggregate_first_immediate", true);
+        this.xlogAggregateSeenTtlMillis = r.getLong("ext_plugin_exception_xlog_aggregate_seen_ttl_ms", 24 * DateUtil.MILLIS_PER_HOUR);
+
+        mark = r.mark();
+        List<ObjectProfileCache.HeapRule> heapRules = new ArrayList<ObjectProfileCache.HeapRule>();
+        groups = r.getValue("ext_plugin_heap_threshold_groups", null);
+        if (groups == null || groups.trim().length() == 0) {
+            for (String[] g : ObjectProfileCache.DEFAULT_GROUPS) {
+                heapRules.add(heapRule(r, g[0], g[1]));
+            }
+        } else {
+            for (String g : groups.split(",")) {
+                g = g.trim();
+                if (g.length() > 0) {
+                    heapRules.add(heapRule(r, g, null));
+                }
+            }
+        }
+        this.heapRules = heapRules.toArray(new ObjectProfileCache.HeapRule[heapRules.size()]);
+        this.heapUsedThreshold = r.getLong("ext_plugin_heap_used_threshold", 0);
+        this.gcTimeThreshold = r.getLong("ext_plugin_gc_time_threshold", 0);
+        this.heapRuleSignature = r.since(mark);
+
+        this.thresholdBreachCount = r.getInt("ext_plugin_threshold_breach_count", 3);
+        this.thresholdWindowSize = r.getInt("ext_plugin_threshold_window_size", 5);
+        this.thresholdClearPercent = r.getInt("ext_plugin_threshold_clear_percent", 90);
+
+        this.threadCountThreshold = r.getInt("ext_plugin_thread_count_threshold", 0);
+        this.threadCountPollTimeoutMillis = r.getLong("ext_plugin_thread_count_poll_timeout_ms", 3000);
+        this.threadCountPollIntervalMillis = Math.max(1, r.getLong("ext_plugin_thread_count_poll_interval_ms", 5000));
+        this.threadCountPollConcurrency = Math.max(1, r.getInt("ext_plugin_thread_count_poll_concurrency", 4));
+
+        this.signature = r.signature() + trace;
+    }
+
+    private DestinationRouter.Destination destination(Reader r, String name) {
+        String prefix = "ext_plugin_telegram_dest_" + name + "_";
+        String chatId = r.getValue(prefix + "chat_id", null);
+        if (chatId == null || chatId.trim().length() == 0) {
+            return null;
+        }
+        String token = r.getValue(prefix + "bot_token", botToken);
+        return new DestinationRouter.Destination(name, chatId.trim(), token, apiUrl + "/bot" + token + "/sendMessage",
+                r.getInt(prefix + "level", level),
+                WildcardMatcher.compile(r.getValue(prefix + "agents", null)),
+                WildcardMatcher.compile(r.getValue(prefix + "obj_types", null)),
+                r.getInt(prefix + "rate_per_min", ratePerMin),
+                r.getInt(prefix + "rate_burst", rateBurst),
+                r.getInt(prefix + "queue_size", r.getInt("ext_plugin_telegram_queue_size_per_chat", 1000)));
+    }
+
+    /**
+     * Destination by name, the default one for {@link DestinationRouter#DEFAULT}.
+     *
+     * @return null if there is no such destination (any more)
+     */
+    public DestinationRouter.Destination destination(String name) {
+        if (DestinationRouter.DEFAULT.equals(name)) {
+            return defaultDestination;
+        }
+        for (DestinationRouter.Destination d : destinations) {
+            if (d.name.equals(name)) {
+                return d;
+            }
+        }
+        return null;
+    }
+
+    private static XLogRouter.Rule xlogRule(Reader r, String group, String defaultAgents) {
+        return new XLogRouter.Rule(group,
+                WildcardMatcher.compile(r.getValue("ext_plugin_exception_xlog_" + group + "_agents", defaultAgents)),
+                WildcardMatcher.compile(r.getValue("ext_plugin_exception_xlog_" + group + "_obj_types", null)),
+                r.getBoolean("ext_plugin_exception_xlog_" + group + "_telegram_enabled", false));
+    }
+
+    private static ObjectProfileCache.HeapRule heapRule(Reader r, String group, String defaultAgents) {
+        return new ObjectProfileCache.HeapRule(
+                WildcardMatcher.compile(r.getValue("ext_plugin_heap_threshold_" + group + "_agents", defaultAgents)),
+                r.getLong("ext_plugin_" + group + "_heap_used_threshold", 0));
+    }
+
+    /**
+     * The current snapshot. Never null once {@link #reload(Configure, boolean)} has been called.
+     */
+    public static TelegramPluginConfig get() {
+        return current;
+    }
+
+    /**
+     * Build a new snapshot and swap it in if any setting is changed.
+     * Configure reloads the file on its own schedule, so after the file is modified
+     * the snapshot keeps being rebuilt for a while until the new values show up.
+     *
+     * @param force rebuild even though the configuration file was not modified recently
+     * @return true if a new snapshot was swapped in
+     */
+    public static synchronized boolean reload(Configure conf, boolean force) {
+        long now = System.currentTimeMillis();
+        long lastModified = conf.getPropertyFile().lastModified();
+        if (lastModified != seenModified) {
+            seenModified = lastModified;
+            recheckUntil = now + RECHECK_MILLIS;
+        }
+
+        TelegramPluginConfig old = current;
+        if (old != null && !force && now > recheckUntil) {
+            return false;
+        }
+
+        TelegramPluginConfig c = new TelegramPluginConfig(conf);
+        if (old != null && old.signature.equals(c.signature)) {
+            return false;
+        }
+        current = c;
+        return true;
+    }
+
+    /**
+     * Reads settings from Configure, recording every value read so that two snapshots can be compared.
+     */
+    private static class Reader {
+        private final Configure conf;
+        private final StringBuilder sb = new StringBuilder(1024);
+
+        Reader(Configure conf) {
+            this.conf = conf;
+        }
+
+        String getValue(String key, String def) {
+            String v = conf.getValue(key, def);
+            sb.append(key).append('=').append(v).append('\n');
+            return v;
+        }
+
+        boolean getBoolean(String key, boolean def) {
+            boolean v = conf.getBoolean(key, def);
+            sb.append(key).append('=').append(v).append('\n');
+            return v;
+        }
+
+        int getInt(String key, int def) {
+            int v = conf.getInt(key, def);
+            sb.append(key).append('=').append(v).append('\n');
+            return v;
+        }
+
+        long getLong(String key, long def) {
+            long v = conf.getLong(key, def);
+            sb.append(key).append('=').append(v).append('\n');
+            return v;
+        }
+
+        int mark() {
+            return sb.length();
+        }
+
+        String since(int mark) {
+            return sb.substring(mark);
+        }
+
+        String signature() {
+            return sb.toString();
+        }
+    }
+}
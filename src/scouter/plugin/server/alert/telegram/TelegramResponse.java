@@ -0,0 +1,59 @@
+/*
+ *  Copyright 2016 Scouter Project.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package scouter.plugin.server.alert.telegram;
+
+import com.google.gson.annotations.SerializedName;
+
+/**
+ * Response body of telegram bot api.
+ * e.g. {"ok":false,"error_code":429,"description":"Too Many Requests: retry after 5","parameters":{"retry_after":5}}
+ */
+public class TelegramResponse {
+
+    private boolean ok;
+    @SerializedName("error_code")
+    private int errorCode;
+    private String description;
+    private Parameters parameters;
+
+    public static class Parameters {
+        @SerializedName("retry_after")
+        private Integer retryAfter;
+
+        public Integer getRetryAfter() {
+            return retryAfter;
+        }
+    }
+
+    public boolean isOk() {
+        return ok;
+    }
+
+    public int getErrorCode() {
+        return errorCode;
+    }
+
+    public String getDescription() {
+        return description;
+    }
+
+    /**
+     * @return seconds to wait before the next request, or 0 if telegram did not tell
+     */
+    public int getRetryAfter() {
+        return parameters == null || parameters.getRetryAfter() == null ? 0 : parameters.getRetryAfter();
+    }
+}
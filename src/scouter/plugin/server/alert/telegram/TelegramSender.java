@@ -0,0 +1,580 @@
+/*
+ *  Copyright 2016 Scouter Project.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package scouter.plugin.server.alert.telegram;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.util.EntityUtils;
+
+import com.google.gson.Gson;
+
+import scouter.server.Logger;
+
+/**
+ * Sends messages to telegram bot api.
+ * Every destination has its own bounded outbox and token bucket, and is drained by one task at a time on a shared pool,
+ * so a noisy or throttled chat never holds back the others. A 429 Too Many Requests (honoring retry_after),
+ * a 5xx response or an I/O error retries the message with jittered exponential backoff until the maximum
+ * attempts are reached. Waiting is always done by scheduling, never by blocking a thread.
+ * In the async delivery mode a message is handed to the non-blocking http client and its response is handled
+ * by a callback, up to ext_plugin_telegram_async_max_in_flight messages in total and
+ * ext_plugin_telegram_async_in_flight_per_chat per destination. With more than one per destination,
+ * the order of the messages of a chat is no longer guaranteed.
+ * With an {@link AlertSpool} the messages are written to the spool first, its replayer hands them to the same outboxes
+ * and acknowledges them in the spool once the outbox is done with them.
+ */
+public class TelegramSender {
+
+    private static final long DELIVERED = 0;
+    private static final long REJECTED = -1;
+    private static final long FAILED = -2;
+
+    private static final Gson gson = new Gson();
+
+    private final TelegramHttpClient httpClient;
+    private final TokenBucketLimiter limiter = new TokenBucketLimiter();
+    private final ExecutorService outboxExecutor;
+    private final ScheduledThreadPoolExecutor retryScheduler;
+    private final ConcurrentHashMap<String, Outbox> outboxes = new ConcurrentHashMap<String, Outbox>();
+    // async messages in flight, and the outboxes waiting for one of them to complete
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final ConcurrentLinkedQueue<Outbox> starved = new ConcurrentLinkedQueue<Outbox>();
+    private final Random random = new Random();
+    private volatile AlertSpool spool;
+    private volatile boolean stopped;
+    private final PluginMetrics metrics = PluginMetrics.get();
+
+    private static class Pending {
+        final String contents;
+        // acknowledges a spooled message, null for the others
+        final Runnable done;
+        int attempt = 1;
+
+        Pending(String contents, Runnable done) {
+            this.contents = contents;
+            this.done = done;
+        }
+
+        /**
+         * The message is delivered, rejected, given up or discarded.
+         */
+        void done() {
+            if (done != null) {
+                done.run();
+            }
+        }
+    }
+
+    /**
+     * Messages waiting for a destination, drained in order by at most one task at a time.
+     */
+    private class Outbox implements Runnable {
+        final String name;
+        final ArrayDeque<Pending> queue = new ArrayDeque<Pending>();
+        // a drain task is queued, running, scheduled or starved
+        boolean active;
+        // async messages of this destination in flight or waiting for their retry
+        int inFlight;
+
+        Outbox(String name) {
+            this.name = name;
+        }
+
+        void offer(Pending p, int capacity) {
+            Pending dropped = null;
+            boolean start;
+            synchronized (this) {
+                if (queue.size() >= Math.max(1, capacity)) {
+                    // the oldest message is the least useful one
+                    dropped = queue.poll();
+                    metrics.outboxDropped.increment();
+                }
+                queue.add(p);
+                start = !active;
+                active = true;
+            }
+            if (dropped != null) {
+                dropped.done();
+            }
+            if (start) {
+                execute(this);
+            }
+        }
+
+        @Override
+        public void run() {
+            try {
+                drain();
+            } catch (Throwable t) {
+                Logger.printStackTrace(t);
+                synchronized (this) {
+                    active = false;
+                }
+            }
+        }
+
+        private void drain() {
+            TelegramPluginConfig c = TelegramPluginConfig.get();
+            DestinationRouter.Destination d = c.destination(name);
+
+            Pending p;
+            ArrayDeque<Pending> discarded = null;
+            synchronized (this) {
+                if (d == null && !queue.isEmpty()) {
+                    Logger.println("[TelegramPlugin] destination " + name + " is removed, " + queue.size() + " message(s) discarded.");
+                    discarded = new ArrayDeque<Pending>(queue);
+                    queue.clear();
+                }
+                p = queue.peek();
+                if (p == null || (c.asyncDelivery && inFlight >= c.asyncInFlightPerChat)) {
+                    // started again by offer() or by a completion
+                    active = false;
+                    p = null;
+                }
+            }
+            if (discarded != null) {
+                for (Pending x : discarded) {
+                    x.done();
+                }
+            }
+            if (p == null) {
+                return;
+            }
+
+            if (c.asyncDelivery && !acquireInFlight(c)) {
+                starved.add(this);
+                wakeStarved(c);
+                return;
+            }
+
+            long wait = limiter.tryAcquire(d.chatId, d.ratePerMin, d.rateBurst);
+            if (wait > 0) {
+                if (c.asyncDelivery) {
+                    releaseInFlight(c);
+                }
+                // waiting for a token is not a failed attempt
+                resumeAfter(wait);
+                return;
+            }
+
+            synchronized (this) {
+                queue.poll();
+                if (c.asyncDelivery) {
+                    inFlight++;
+                }
+            }
+
+            if (c.asyncDelivery) {
+                postAsync(c, d, this, p);
+                execute(this);
+                return;
+            }
+
+            long result = post(c, d, p.contents);
+            if (result == FAILED || result > 0) {
+                if (p.attempt >= c.retryMaxAttempts) {
+                    metrics.gaveUp.increment();
+                    Logger.println("[TelegramPlugin] give up a telegram message to " + name + " after " + p.attempt + " attempt(s).");
+                    p.done();
+                } else {
+                    metrics.retried.increment();
+                    long delay = backoff(c, p.attempt, result == FAILED ? 0 : result);
+                    p.attempt++;
+                    synchronized (this) {
+                        // retried before anything newer, to keep the order of the chat
+                        queue.addFirst(p);
+                    }
+                    resumeAfter(delay);
+                    return;
+                }
+            } else {
+                p.done();
+            }
+
+            // one message per task, so the destinations share the pool fairly
+            execute(this);
+        }
+
+        /**
+         * Called back when an async message is done with.
+         */
+        void completed(TelegramPluginConfig c, final Pending p, long result) {
+            releaseInFlight(c);
+            if (result == FAILED || result > 0) {
+                if (p.attempt >= c.retryMaxAttempts) {
+                    metrics.gaveUp.increment();
+                    Logger.println("[TelegramPlugin] give up a telegram message to " + name + " after " + p.attempt + " attempt(s).");
+                    p.done();
+                } else {
+                    metrics.retried.increment();
+                    long delay = backoff(c, p.attempt, result == FAILED ? 0 : result);
+                    p.attempt++;
+                    // the slot of the destination is kept during the backoff, so the chat waits as in the synchronous mode
+                    schedule(new Runnable() {
+                        @Override
+                        public void run() {
+                            synchronized (Outbox.this) {
+                                queue.addFirst(p);
+                            }
+                            release();
+                        }
+                    }, delay);
+                    return;
+                }
+            } else {
+                p.done();
+            }
+            release();
+        }
+
+        private void release() {
+            synchronized (this) {
+                inFlight--;
+                if (active || queue.isEmpty()) {
+                    return;
+                }
+                active = true;
+            }
+            execute(this);
+        }
+
+        private void resumeAfter(long delayMillis) {
+            schedule(new Runnable() {
+                @Override
+                public void run() {
+                    execute(Outbox.this);
+                }
+            }, delayMillis);
+        }
+
+        synchronized int size() {
+            return queue.size() + inFlight;
+        }
+    }
+
+    public TelegramSender(TelegramHttpClient httpClient, int workers) {
+        this.httpClient = httpClient;
+        this.outboxExecutor = Executors.newFixedThreadPool(Math.max(1, workers), new AlertDispatcher.DaemonThreadFactory("telegram-alert-outbox"));
+        this.retryScheduler = new ScheduledThreadPoolExecutor(1, new AlertDispatcher.DaemonThreadFactory("telegram-alert-retry"));
+        this.retryScheduler.setRemoveOnCancelPolicy(true);
+    }
+
+    /**
+     * Send a message text to a destination. With the spool enabled the message is written to the spool first
+     * and handed back by its replayer, see {@link #deliver(String, String, Runnable)}.
+     */
+    public void send(DestinationRouter.Destination d, String contents) {
+        AlertSpool spool = this.spool;
+        if (spool != null && spool.append(d.name, contents)) {
+            metrics.spooled.increment();
+            return;
+        }
+        outbox(d.name).offer(new Pending(contents, null), d.queueSize);
+    }
+
+    /**
+     * {@link AlertSpool.Delivery} of spooled messages, queued to the outbox of their destination as in send().
+     * The spool is acknowledged when the message is delivered, rejected, given up or discarded.
+     */
+    public void deliver(String destination, String contents, Runnable done) {
+        DestinationRouter.Destination d = TelegramPluginConfig.get().destination(destination);
+        if (d == null) {
+            Logger.println("[TelegramPlugin] destination " + destination + " is removed, a spooled message is discarded.");
+            done.run();
+            return;
+        }
+        outbox(d.name).offer(new Pending(contents, done), d.queueSize);
+    }
+
+    private Outbox outbox(String name) {
+        Outbox outbox = outboxes.get(name);
+        if (outbox == null) {
+            Outbox created = new Outbox(name);
+            outbox = outboxes.putIfAbsent(name, created);
+            if (outbox == null) {
+                outbox = created;
+            }
+        }
+        return outbox;
+    }
+
+    private boolean acquireInFlight(TelegramPluginConfig c) {
+        for (;;) {
+            int n = inFlight.get();
+            if (n >= c.asyncMaxInFlight) {
+                return false;
+            }
+            if (inFlight.compareAndSet(n, n + 1)) {
+                return true;
+            }
+        }
+    }
+
+    private void releaseInFlight(TelegramPluginConfig c) {
+        inFlight.decrementAndGet();
+        wakeStarved(c);
+    }
+
+    /**
+     * Resumes as many starved outboxes as there are free slots. Called after every change of either side,
+     * so an outbox starving right after a slot was freed is not forgotten.
+     */
+    private void wakeStarved(TelegramPluginConfig c) {
+        int free = c.asyncMaxInFlight - inFlight.get();
+        Outbox outbox;
+        while (free-- > 0 && (outbox = starved.poll()) != null) {
+            execute(outbox);
+        }
+    }
+
+    public void setSpool(AlertSpool spool) {
+        this.spool = spool;
+    }
+
+    /**
+     * Number of messages waiting in the outboxes of all destinations, including the async ones in flight.
+     */
+    public int getQueueSize() {
+        int size = 0;
+        for (Outbox outbox : outboxes.values()) {
+            size += outbox.size();
+        }
+        return size;
+    }
+
+    /**
+     * @return DELIVERED, REJECTED (can not succeed by retrying), FAILED (may succeed by retrying)
+     *         or the milliseconds telegram asked to wait before retrying
+     */
+    private long post(TelegramPluginConfig c, DestinationRouter.Destination d, String contents) {
+        String chatId = d.chatId;
+
+        assert d.botToken != null;
+        assert chatId != null;
+
+        // request URL using telegram bot api
+        String url = d.sendMessageUrl;
+
+        MessageBody param = null;
+        int status;
+        String body;
+        try {
+            param = MessageBody.write(chatId, contents, c.messageTemplate.getParseMode());
+
+            HttpPost post = new HttpPost(url);
+            // utf-8 json (한글 깨짐 방지)
+            post.setEntity(param.entity());
+
+            CloseableHttpClient client = httpClient.get(c);
+
+            // send the post request
+            long started = System.currentTimeMillis();
+            CloseableHttpResponse response = client.execute(post);
+
+            try {
+                status = response.getStatusLine().getStatusCode();
+                body = status == HttpStatus.SC_OK ? null : EntityUtils.toString(response.getEntity(), "UTF-8");
+            } finally {
+                // consume the entity so the connection goes back to the pool
+                EntityUtils.consumeQuietly(response.getEntity());
+                response.close();
+            }
+            metrics.latency.record(System.currentTimeMillis() - started);
+        } catch (Exception e) {
+            return error(c, e);
+        }
+        return result(c, d, status, body, param);
+    }
+
+    /**
+     * Sends a message through the non-blocking http client, the outbox is called back with the result.
+     */
+    private void postAsync(final TelegramPluginConfig c, final DestinationRouter.Destination d, final Outbox outbox, final Pending p) {
+        final long started = System.currentTimeMillis();
+        try {
+            HttpPost post = new HttpPost(d.sendMessageUrl);
+            // a copy, the request is written after this thread writes its next body
+            post.setEntity(MessageBody.write(d.chatId, p.contents, c.messageTemplate.getParseMode()).copy());
+
+            httpClient.getAsync(c).execute(post, new FutureCallback<HttpResponse>() {
+                @Override
+                public void completed(HttpResponse response) {
+                    int status;
+                    String body;
+                    try {
+                        status = response.getStatusLine().getStatusCode();
+                        body = status == HttpStatus.SC_OK ? null : EntityUtils.toString(response.getEntity(), "UTF-8");
+                    } catch (Exception e) {
+                        outbox.completed(c, p, error(c, e));
+                        return;
+                    } finally {
+                        EntityUtils.consumeQuietly(response.getEntity());
+                    }
+                    metrics.latency.record(System.currentTimeMillis() - started);
+                    outbox.completed(c, p, result(c, d, status, body, p.contents));
+                }
+
+                @Override
+                public void failed(Exception e) {
+                    outbox.completed(c, p, error(c, e));
+                }
+
+                @Override
+                public void cancelled() {
+                    outbox.completed(c, p, error(c, new IOException("request cancelled")));
+                }
+            });
+        } catch (Exception e) {
+            // also a client closed by a rebuild in between
+            outbox.completed(c, p, error(c, e));
+        }
+    }
+
+    private long error(TelegramPluginConfig c, Exception e) {
+        metrics.failed.increment();
+        println("[Error] : " + e.getMessage());
+
+        if (c.trace) {
+            e.printStackTrace();
+        }
+        return FAILED;
+    }
+
+    private long result(TelegramPluginConfig c, DestinationRouter.Destination d, int status, String body, Object message) {
+        String chatId = d.chatId;
+        if (status == HttpStatus.SC_OK) {
+            metrics.sent.increment();
+            println("Telegram message sent to [" + chatId + "] successfully.");
+            return DELIVERED;
+        }
+
+        println("Telegram message sent failed. Verify below information.");
+        println("[URL] : " + d.sendMessageUrl);
+        println("[Message] : " + message);
+        println("[Reason] : " + body);
+
+        if (status == 429) {
+            metrics.throttled.increment();
+            long retryAfterMillis = parseRetryAfter(body) * 1000L;
+            if (retryAfterMillis > 0) {
+                limiter.pauseUntil(chatId, System.currentTimeMillis() + retryAfterMillis);
+                return retryAfterMillis;
+            }
+            return FAILED;
+        } else if (status >= 500) {
+            metrics.failed.increment();
+            return FAILED;
+        }
+        // other 4xx (bad token, chat not found, malformed message) can not succeed by retrying
+        metrics.rejected.increment();
+        return REJECTED;
+    }
+
+    private long backoff(TelegramPluginConfig c, int attempt, long minDelayMillis) {
+        long backoff = Math.min(c.retryBackoffMaxMillis, c.retryBackoffMillis << Math.min(attempt - 1, 20));
+
+        // full jitter, but never earlier than telegram asked for
+        return Math.max(minDelayMillis, Math.max(1, (long) (random.nextDouble() * backoff)));
+    }
+
+    private static int parseRetryAfter(String body) {
+        try {
+            TelegramResponse response = gson.fromJson(body, TelegramResponse.class);
+            return response == null ? 0 : response.getRetryAfter();
+        } catch (Exception e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Give the outboxes a chance to be delivered, then stop.
+     */
+    public void shutdown(long drainTimeoutMillis) {
+        long until = System.currentTimeMillis() + drainTimeoutMillis;
+        try {
+            while (getQueueSize() > 0 && System.currentTimeMillis() < until) {
+                Thread.sleep(50);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        int discarded = getQueueSize();
+        if (discarded > 0) {
+            Logger.println("[TelegramPlugin] " + discarded + " message(s) discarded on shutdown.");
+        }
+        // outbox tasks still running may schedule a retry, so the scheduler is stopped after them
+        stopped = true;
+        outboxExecutor.shutdownNow();
+        try {
+            outboxExecutor.awaitTermination(1, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        retryScheduler.shutdownNow();
+    }
+
+    /**
+     * Runs an outbox task. After shutdown the task is dropped, its messages stay in the outbox (and unacknowledged in the spool).
+     */
+    private void execute(Runnable task) {
+        try {
+            outboxExecutor.execute(task);
+        } catch (RejectedExecutionException e) {
+            rejected(e);
+        }
+    }
+
+    /**
+     * Schedules a retry or a resume, dropped after shutdown as in {@link #execute(Runnable)}.
+     */
+    private void schedule(Runnable task, long delayMillis) {
+        try {
+            retryScheduler.schedule(task, delayMillis, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            rejected(e);
+        }
+    }
+
+    private void rejected(RejectedExecutionException e) {
+        if (!stopped) {
+            throw e;
+        }
+        println("a telegram message is left undelivered on shutdown.");
+    }
+
+    private void println(Object o) {
+        if (TelegramPluginConfig.get().debug) {
+            Logger.println(o);
+        }
+    }
+}
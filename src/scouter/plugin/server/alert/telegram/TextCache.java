@@ -0,0 +1,53 @@
+/*
+ *  Copyright 2016 Scouter Project.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package scouter.plugin.server.alert.telegram;
+
+import scouter.server.db.TextRD;
+import scouter.util.DateUtil;
+import scouter.util.LongKeyLinkedMap;
+
+/**
+ * Bounded LRU cache of texts resolved by {@link TextRD}, keyed by (date, hash) packed into a long,
+ * so that repeated service and error hashes skip the text database lookup.
+ */
+public class TextCache {
+
+    private final String textType;
+    private final LongKeyLinkedMap<String> cache;
+
+    public TextCache(String textType, int max) {
+        this.textType = textType;
+        this.cache = new LongKeyLinkedMap<String>().setMax(max);
+    }
+
+    public String get(long time, int hash) {
+        long key = (DateUtil.getDateUnit(time) << 32) | (hash & 0xFFFFFFFFL);
+
+        String text = cache.get(key);
+        if (text != null) {
+            // move to the tail so the least recently used one is evicted first
+            cache.putLast(key, text);
+            return text;
+        }
+
+        text = TextRD.getString(DateUtil.yyyymmdd(time), textType, hash);
+        if (text != null) {
+            // unresolved texts are not cached, they may be written to the text database later
+            cache.putLast(key, text);
+        }
+        return text;
+    }
+}
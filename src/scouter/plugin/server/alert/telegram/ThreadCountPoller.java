@@ -0,0 +1,247 @@
+/*
+ *  Copyright 2016 Scouter Project.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package scouter.plugin.server.alert.telegram;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import scouter.lang.AlertLevel;
+import scouter.lang.pack.AlertPack;
+import scouter.lang.pack.MapPack;
+import scouter.lang.pack.ObjectPack;
+import scouter.lang.value.ListValue;
+import scouter.net.RequestCmd;
+import scouter.server.Logger;
+import scouter.server.core.AgentManager;
+import scouter.server.netio.AgentCall;
+
+/**
+ * Polls the thread count of the registered JavaEE objects and raises an alert when it exceeds
+ * ext_plugin_thread_count_threshold. Agents are queried in parallel with bounded concurrency,
+ * staggered across the poll interval, and a call is given up after a timeout so a slow agent
+ * does not delay the others. AgentCall does not answer to interrupts, so a timed out call keeps its caller
+ * until the agent's socket times out, and the agent is not polled again until then.
+ * The count is the size of the agent's OBJECT_THREAD_LIST answer : the agent has no counter or lighter request for it,
+ * so every poll still transfers the whole thread list. Nothing is polled while the threshold is 0.
+ */
+public class ThreadCountPoller implements Runnable {
+
+    /**
+     * Told about the agents dropped from the poll because they are removed from the server.
+     */
+    public interface RemovalListener {
+        void removed(int objHash);
+    }
+
+    private final ScheduledExecutorService scheduler;
+    private final AlertDispatcher.Handler alertHandler;
+    private final RemovalListener removalListener;
+    private final ThreadPoolExecutor callers;
+
+    private final Set<Integer> registry = ConcurrentHashMap.newKeySet();
+    // agents whose call is scheduled, queued or still running
+    private final Set<Integer> inFlight = ConcurrentHashMap.newKeySet();
+
+    private volatile long lastCycleMillis;
+
+    public ThreadCountPoller(ScheduledExecutorService scheduler, AlertDispatcher.Handler alertHandler, RemovalListener removalListener) {
+        this.scheduler = scheduler;
+        this.alertHandler = alertHandler;
+        this.removalListener = removalListener;
+
+        int concurrency = TelegramPluginConfig.get().threadCountPollConcurrency;
+        this.callers = new ThreadPoolExecutor(concurrency, concurrency, 60L, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(1024), new AlertDispatcher.DaemonThreadFactory("telegram-thread-count"));
+        this.callers.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Register a JavaEE object to poll. O(1) and safe to call on every counter pack.
+     */
+    public void register(int objHash) {
+        registry.add(objHash);
+    }
+
+    public int size() {
+        return registry.size();
+    }
+
+    public long getLastCycleMillis() {
+        return lastCycleMillis;
+    }
+
+    /**
+     * One poll cycle. Scheduled at a fixed rate of the poll interval.
+     */
+    @Override
+    public void run() {
+        TelegramPluginConfig c = TelegramPluginConfig.get();
+        if (c.threadCountThreshold == 0) {
+            return;
+        }
+
+        List<Integer> targets = new ArrayList<Integer>(registry.size());
+        for (Integer objHash : registry) {
+            if (AgentManager.getAgent(objHash) == null) {
+                // the agent is removed from the server
+                registry.remove(objHash);
+                removalListener.removed(objHash);
+            } else if (AgentManager.isActive(objHash) && !inFlight.contains(objHash)) {
+                targets.add(objHash);
+            }
+        }
+
+        if (targets.isEmpty()) {
+            return;
+        }
+
+        long step = c.threadCountPollIntervalMillis / targets.size();
+
+        final long cycleStart = System.currentTimeMillis();
+        final AtomicInteger remaining = new AtomicInteger(targets.size());
+
+        for (int i = 0; i < targets.size(); i++) {
+            final int objHash = targets.get(i);
+            inFlight.add(objHash);
+
+            scheduler.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    submit(objHash, remaining, cycleStart);
+                }
+            }, i * step, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void submit(final int objHash, final AtomicInteger remaining, final long cycleStart) {
+        // taken by whichever comes first, the call starting or its timeout
+        final AtomicBoolean claimed = new AtomicBoolean();
+        final AtomicBoolean counted = new AtomicBoolean();
+        final long submitted = System.currentTimeMillis();
+        final Future<?> future;
+        try {
+            future = callers.submit(new Runnable() {
+                @Override
+                public void run() {
+                    if (!claimed.compareAndSet(false, true)) {
+                        // timed out while queued
+                        return;
+                    }
+                    try {
+                        check(objHash);
+                    } catch (Exception e) {
+                        // ignore
+                    } finally {
+                        inFlight.remove(objHash);
+                        if (!done(counted, remaining, cycleStart)) {
+                            Logger.println("[TelegramPlugin] thread count poll of " + AgentManager.getAgentName(objHash)
+                                    + " returned after " + (System.currentTimeMillis() - submitted) + " ms, it is polled again.");
+                        }
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            inFlight.remove(objHash);
+            done(counted, remaining, cycleStart);
+            return;
+        }
+
+        long timeout = TelegramPluginConfig.get().threadCountPollTimeoutMillis;
+        scheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                if (claimed.compareAndSet(false, true)) {
+                    // still queued behind slower calls
+                    future.cancel(false);
+                    inFlight.remove(objHash);
+                    done(counted, remaining, cycleStart);
+                    println("[TelegramPlugin] thread count poll of " + AgentManager.getAgentName(objHash) + " timed out in the queue.");
+                } else if (!future.isDone() && done(counted, remaining, cycleStart)) {
+                    Logger.println("[TelegramPlugin] thread count poll of " + AgentManager.getAgentName(objHash)
+                            + " timed out, the agent is skipped until the call returns.");
+                }
+            }
+        }, timeout, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Count the call in its cycle, once.
+     *
+     * @return false if the call was already counted by its timeout
+     */
+    private boolean done(AtomicBoolean counted, AtomicInteger remaining, long cycleStart) {
+        if (!counted.compareAndSet(false, true)) {
+            return false;
+        }
+        if (remaining.decrementAndGet() == 0) {
+            lastCycleMillis = System.currentTimeMillis() - cycleStart;
+            println("[TelegramPlugin] thread count poll cycle took " + lastCycleMillis + " ms.");
+        }
+        return true;
+    }
+
+    private void check(int objHash) {
+        ObjectPack objectPack = AgentManager.getAgent(objHash);
+        if (objectPack == null) {
+            return;
+        }
+
+        MapPack mapPack = new MapPack();
+        mapPack.put("objHash", objHash);
+
+        mapPack = AgentCall.call(objectPack, RequestCmd.OBJECT_THREAD_LIST, mapPack);
+        if (mapPack == null) {
+            return;
+        }
+
+        int threadCountThreshold = TelegramPluginConfig.get().threadCountThreshold;
+        ListValue names = mapPack.getList("name");
+        int threadCount = names == null ? 0 : names.size();
+
+        if (threadCountThreshold != 0 && threadCount > threadCountThreshold) {
+            AlertPack ap = new AlertPack();
+
+            ap.level = AlertLevel.WARN;
+            ap.objHash = objHash;
+            ap.title = "Thread count exceed a threshold.";
+            ap.message = objectPack.objName + "'s Thread count(" + threadCount + ") exceed a threshold.";
+            ap.time = System.currentTimeMillis();
+            ap.objType = objectPack.objType;
+
+            alertHandler.handle(ap);
+        }
+    }
+
+    public void shutdown() {
+        callers.shutdownNow();
+    }
+
+    private void println(Object o) {
+        if (TelegramPluginConfig.get().debug) {
+            Logger.println(o);
+        }
+    }
+}
@@ -0,0 +1,129 @@
+/*
+ *  Copyright 2016 Scouter Project.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package scouter.plugin.server.alert.telegram;
+
+import scouter.util.IntKeyLinkedMap;
+
+/**
+ * Stateful per object threshold evaluation with N of M windows and hysteresis.
+ * An object enters the breached state when N of its last M samples are above the raise threshold,
+ * and leaves it when N of its last M samples are below the clear threshold.
+ * Only the transitions are reported, so a busy object raises one alert and one recovery.
+ * A breached object is never forgotten silently : a resized window keeps the breached state,
+ * and disabling the threshold reports the recovery.
+ */
+public class ThresholdEvaluator {
+
+    public static final int NONE = 0;
+    public static final int RAISED = 1;
+    public static final int CLEARED = 2;
+
+    private static final byte ABOVE_RAISE = 1;
+    private static final byte BELOW_CLEAR = 2;
+
+    static class State {
+        final byte[] ring;
+        int pos;
+        int filled;
+        int aboveRaise;
+        int belowClear;
+        boolean breached;
+
+        State(int size) {
+            this.ring = new byte[size];
+        }
+
+        /**
+         * A state with a window of another size, the samples are dropped but not the breached state.
+         */
+        State resize(int size) {
+            State state = new State(size);
+            synchronized (this) {
+                state.breached = breached;
+            }
+            return state;
+        }
+
+        void add(byte flags) {
+            if (filled == ring.length) {
+                byte old = ring[pos];
+                if ((old & ABOVE_RAISE) != 0) aboveRaise--;
+                if ((old & BELOW_CLEAR) != 0) belowClear--;
+            } else {
+                filled++;
+            }
+            ring[pos] = flags;
+            if ((flags & ABOVE_RAISE) != 0) aboveRaise++;
+            if ((flags & BELOW_CLEAR) != 0) belowClear++;
+            pos = (pos + 1) % ring.length;
+        }
+    }
+
+    private final IntKeyLinkedMap<State> states = new IntKeyLinkedMap<State>().setMax(10000);
+
+    /**
+     * Add a sample of the object and evaluate it.
+     *
+     * @param raise threshold to enter the breached state, 0 disables the evaluation (and clears a breached object)
+     * @param clear threshold to leave the breached state
+     * @param n     samples required out of the window
+     * @param m     window size
+     * @return {@link #NONE}, {@link #RAISED} or {@link #CLEARED}
+     */
+    public int evaluate(int objHash, long value, long raise, long clear, int n, int m) {
+        if (raise == 0) {
+            State state = states.remove(objHash);
+            if (state != null) {
+                synchronized (state) {
+                    return state.breached ? CLEARED : NONE;
+                }
+            }
+            return NONE;
+        }
+        m = Math.max(1, m);
+        n = Math.min(Math.max(1, n), m);
+
+        State state = states.get(objHash);
+        if (state == null) {
+            state = new State(m);
+            states.put(objHash, state);
+        } else if (state.ring.length != m) {
+            state = state.resize(m);
+            states.put(objHash, state);
+        }
+
+        synchronized (state) {
+            byte flags = 0;
+            if (value > raise) flags |= ABOVE_RAISE;
+            if (value < clear) flags |= BELOW_CLEAR;
+            state.add(flags);
+
+            if (!state.breached && state.aboveRaise >= n) {
+                state.breached = true;
+                return RAISED;
+            }
+            if (state.breached && state.belowClear >= n) {
+                state.breached = false;
+                return CLEARED;
+            }
+            return NONE;
+        }
+    }
+
+    public void remove(int objHash) {
+        states.remove(objHash);
+    }
+}
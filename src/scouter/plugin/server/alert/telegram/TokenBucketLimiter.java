@@ -0,0 +1,91 @@
+/*
+ *  Copyright 2016 Scouter Project.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package scouter.plugin.server.alert.telegram;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Per chat token bucket. A bucket is refilled continuously at the configured rate up to its burst size,
+ * and can be paused when telegram answers with a retry_after.
+ */
+public class TokenBucketLimiter {
+
+    private final ConcurrentHashMap<String, Bucket> buckets = new ConcurrentHashMap<String, Bucket>();
+
+    /**
+     * Take a token from the bucket of the chat.
+     *
+     * @return 0 if a token was taken, otherwise milliseconds to wait before trying again
+     */
+    public long tryAcquire(String chatId, int perMinute, int burst) {
+        if (perMinute <= 0) {
+            return 0;
+        }
+        Bucket bucket = buckets.get(chatId);
+        if (bucket == null) {
+            Bucket created = new Bucket(burst);
+            bucket = buckets.putIfAbsent(chatId, created);
+            if (bucket == null) {
+                bucket = created;
+            }
+        }
+        return bucket.tryAcquire(perMinute, Math.max(1, burst), System.currentTimeMillis());
+    }
+
+    /**
+     * Hold every send to the chat until the given time, e.g. after a 429 Too Many Requests.
+     */
+    public void pauseUntil(String chatId, long until) {
+        Bucket bucket = buckets.get(chatId);
+        if (bucket != null) {
+            bucket.pauseUntil(until);
+        }
+    }
+
+    static class Bucket {
+        private double tokens;
+        private long refilledAt;
+        private long pausedUntil;
+
+        Bucket(int burst) {
+            this.tokens = Math.max(1, burst);
+            this.refilledAt = System.currentTimeMillis();
+        }
+
+        synchronized long tryAcquire(int perMinute, int burst, long now) {
+            if (now < pausedUntil) {
+                return pausedUntil - now;
+            }
+
+            double perMillis = perMinute / 60000.0;
+            tokens = Math.min(burst, tokens + (now - refilledAt) * perMillis);
+            refilledAt = now;
+
+            if (tokens >= 1) {
+                tokens -= 1;
+                return 0;
+            }
+            return (long) Math.ceil((1 - tokens) / perMillis);
+        }
+
+        synchronized void pauseUntil(long until) {
+            if (until > pausedUntil) {
+                pausedUntil = until;
+                tokens = 0;
+            }
+        }
+    }
+}
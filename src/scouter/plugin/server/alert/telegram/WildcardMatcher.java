@@ -0,0 +1,141 @@
+/*
+ *  Copyright 2016 Scouter Project.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package scouter.plugin.server.alert.telegram;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * Precompiled matcher for a comma separated list of wildcard(*) patterns.
+ * A pattern must match the whole text. Patterns of the form 'abc', 'abc*', '*abc' and '*abc*'
+ * are checked with plain string operations, every other pattern is merged into one regular expression
+ * in which all characters except '*' are matched literally.
+ */
+public class WildcardMatcher {
+
+    private static final String[] EMPTY = new String[0];
+
+    private final String source;
+    private final String[] exacts;
+    private final String[] prefixes;
+    private final String[] suffixes;
+    private final String[] contains;
+    private final Pattern complex;
+
+    private WildcardMatcher(String source, List<String> exacts, List<String> prefixes, List<String> suffixes,
+                            List<String> contains, Pattern complex) {
+        this.source = source;
+        this.exacts = exacts.toArray(EMPTY);
+        this.prefixes = prefixes.toArray(EMPTY);
+        this.suffixes = suffixes.toArray(EMPTY);
+        this.contains = contains.toArray(EMPTY);
+        this.complex = complex;
+    }
+
+    public static WildcardMatcher compile(String patterns) {
+        List<String> exacts = new ArrayList<String>();
+        List<String> prefixes = new ArrayList<String>();
+        List<String> suffixes = new ArrayList<String>();
+        List<String> contains = new ArrayList<String>();
+        StringBuilder regex = new StringBuilder();
+
+        if (patterns != null) {
+            for (String p : patterns.split(",")) {
+                p = p.trim();
+                if (p.length() == 0) {
+                    continue;
+                }
+
+                boolean leading = p.startsWith("*");
+                boolean trailing = p.length() > 1 && p.endsWith("*");
+                String body = p.substring(leading ? 1 : 0, trailing ? p.length() - 1 : p.length());
+
+                if (body.indexOf('*') < 0) {
+                    if (leading && trailing) {
+                        contains.add(body);
+                    } else if (leading) {
+                        suffixes.add(body);
+                    } else if (trailing) {
+                        prefixes.add(body);
+                    } else {
+                        exacts.add(body);
+                    }
+                } else {
+                    if (regex.length() > 0) {
+                        regex.append('|');
+                    }
+                    regex.append("(?:").append(toRegex(p)).append(')');
+                }
+            }
+        }
+
+        return new WildcardMatcher(patterns, exacts, prefixes, suffixes, contains,
+                regex.length() == 0 ? null : Pattern.compile(regex.toString(), Pattern.DOTALL));
+    }
+
+    private static String toRegex(String pattern) {
+        StringBuilder sb = new StringBuilder();
+        int start = 0;
+        int idx;
+        while ((idx = pattern.indexOf('*', start)) >= 0) {
+            if (idx > start) {
+                sb.append(Pattern.quote(pattern.substring(start, idx)));
+            }
+            sb.append(".*");
+            start = idx + 1;
+        }
+        if (start < pattern.length()) {
+            sb.append(Pattern.quote(pattern.substring(start)));
+        }
+        return sb.toString();
+    }
+
+    public String getSource() {
+        return source;
+    }
+
+    public boolean isEmpty() {
+        return exacts.length == 0 && prefixes.length == 0 && suffixes.length == 0 && contains.length == 0 && complex == null;
+    }
+
+    public boolean matches(String text) {
+        if (text == null) {
+            return false;
+        }
+        for (String s : exacts) {
+            if (text.equals(s)) {
+                return true;
+            }
+        }
+        for (String s : prefixes) {
+            if (text.startsWith(s)) {
+                return true;
+            }
+        }
+        for (String s : suffixes) {
+            if (text.endsWith(s)) {
+                return true;
+            }
+        }
+        for (String s : contains) {
+            if (text.contains(s)) {
+                return true;
+            }
+        }
+        return complex != null && complex.matcher(text).matches();
+    }
+}
@@ -0,0 +1,212 @@
+/*
+ *  Copyright 2016 Scouter Project.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package scouter.plugin.server.alert.telegram;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.PriorityQueue;
+
+import scouter.util.LongKeyMap;
+import scouter.util.LongLongLinkedMap;
+
+/**
+ * Counts xlog errors per (objHash, service, error) over a window, and summarizes the window by its top-N entries
+ * instead of sending one alert per erroring transaction.
+ * Entries are kept in a LongKeyMap keyed by (service, error) with a short chain of agents per key,
+ * so counting an error allocates nothing but the first entry of a key in a window.
+ * An (objHash, service, error) which was not seen within the seen ttl can be alerted at once, its later occurrences are only counted.
+ */
+public class XLogErrorAggregator {
+
+    public interface Listener {
+        void summarized(Summary summary);
+    }
+
+    public static class Entry {
+        public final int objHash;
+        public final int service;
+        public final int error;
+        /** xlog end times */
+        public final long firstSeen;
+        public long lastSeen;
+        public int count;
+        Entry next;
+
+        Entry(int objHash, int service, int error, long time) {
+            this.objHash = objHash;
+            this.service = service;
+            this.error = error;
+            this.firstSeen = time;
+            this.lastSeen = time;
+        }
+    }
+
+    public static class Summary {
+        public final long openedAt;
+        public final long closedAt;
+        /** errors counted in the window */
+        public final int errors;
+        /** distinct (objHash, service, error) */
+        public final int kinds;
+        /** errors not itemized because the window had too many kinds */
+        public final int overflowed;
+        /** the most frequent entries, most frequent first */
+        public final List<Entry> top;
+
+        Summary(long openedAt, long closedAt, int errors, int kinds, int overflowed, List<Entry> top) {
+            this.openedAt = openedAt;
+            this.closedAt = closedAt;
+            this.errors = errors;
+            this.kinds = kinds;
+            this.overflowed = overflowed;
+            this.top = top;
+        }
+    }
+
+    private static final Comparator<Entry> BY_COUNT = new Comparator<Entry>() {
+        @Override
+        public int compare(Entry o1, Entry o2) {
+            return o1.count < o2.count ? -1 : o1.count == o2.count ? 0 : 1;
+        }
+    };
+
+    private final Listener listener;
+
+    // current window
+    private LongKeyMap<Entry> entries = new LongKeyMap<Entry>();
+    private int kinds;
+    private int errors;
+    private int immediate;
+    private int overflowed;
+    private long openedAt;
+
+    // last time each (objHash, service, error) was seen, least recently seen first
+    private final LongLongLinkedMap seen = new LongLongLinkedMap();
+    private int seenMax;
+
+    public XLogErrorAggregator(Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Count an erroring xlog.
+     *
+     * @return true if the (objHash, service, error) was not seen within seenTtlMillis and should be alerted at once
+     */
+    public synchronized boolean add(int objHash, int service, int error, long time,
+                                    int maxEntries, boolean firstImmediate, long seenTtlMillis) {
+        long key = ((long) service << 32) | (error & 0xFFFFFFFFL);
+
+        if (errors == 0) {
+            openedAt = System.currentTimeMillis();
+        }
+        errors++;
+
+        boolean first = false;
+        if (firstImmediate) {
+            if (seenMax != maxEntries) {
+                seen.setMax(Math.max(1, maxEntries));
+                seenMax = maxEntries;
+            }
+            // the agent is mixed into the key, a collision only leaves an error to the summary
+            long seenKey = key ^ (objHash * 0x9E3779B97F4A7C15L);
+            long last = seen.get(seenKey);
+            first = last == 0 || time - last > seenTtlMillis;
+            seen.putLast(seenKey, time);
+            if (first) {
+                immediate++;
+            }
+        }
+
+        Entry head = entries.get(key);
+        for (Entry e = head; e != null; e = e.next) {
+            if (e.objHash == objHash) {
+                e.count++;
+                e.lastSeen = Math.max(e.lastSeen, time);
+                return first;
+            }
+        }
+        if (kinds >= maxEntries) {
+            overflowed++;
+            return first;
+        }
+        Entry e = new Entry(objHash, service, error, time);
+        e.count = 1;
+        e.next = head;
+        entries.put(key, e);
+        kinds++;
+        return first;
+    }
+
+    /**
+     * Close the window if it is elapsed, and pass its summary to the listener unless every error of the window
+     * has already been alerted at once. Called periodically from the plugin's scheduler.
+     */
+    public void flushIfExpired(long windowMillis, int topN) {
+        LongKeyMap<Entry> closed;
+        int closedKinds;
+        int closedErrors;
+        int closedImmediate;
+        int closedOverflowed;
+        long closedOpenedAt;
+        long now = System.currentTimeMillis();
+
+        synchronized (this) {
+            if (errors == 0 || now - openedAt < windowMillis) {
+                return;
+            }
+            closed = entries;
+            closedKinds = kinds;
+            closedErrors = errors;
+            closedImmediate = immediate;
+            closedOverflowed = overflowed;
+            closedOpenedAt = openedAt;
+
+            entries = new LongKeyMap<Entry>();
+            kinds = 0;
+            errors = 0;
+            immediate = 0;
+            overflowed = 0;
+        }
+
+        if (closedErrors == closedImmediate) {
+            return;
+        }
+        listener.summarized(new Summary(closedOpenedAt, now, closedErrors, closedKinds, closedOverflowed, top(closed, topN)));
+    }
+
+    private static List<Entry> top(LongKeyMap<Entry> entries, int n) {
+        // min-heap of the n most frequent so far
+        PriorityQueue<Entry> heap = new PriorityQueue<Entry>(Math.max(1, n), BY_COUNT);
+        Enumeration<Entry> en = entries.values();
+        while (en.hasMoreElements()) {
+            for (Entry e = en.nextElement(); e != null; e = e.next) {
+                if (heap.size() < n) {
+                    heap.add(e);
+                } else if (n > 0 && heap.peek().count < e.count) {
+                    heap.poll();
+                    heap.add(e);
+                }
+            }
+        }
+        List<Entry> top = new ArrayList<Entry>(heap);
+        Collections.sort(top, Collections.reverseOrder(BY_COUNT));
+        return top;
+    }
+}
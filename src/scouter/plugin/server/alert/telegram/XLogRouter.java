@@ -0,0 +1,156 @@
+/*
+ *  Copyright 2016 Scouter Project.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package scouter.plugin.server.alert.telegram;
+
+import scouter.lang.pack.ObjectPack;
+import scouter.server.core.AgentManager;
+import scouter.util.IntKeyLinkedMap;
+
+/**
+ * Routing table which maps an agent to the xlog error alert group it belongs to.
+ * Groups are read from the configuration, e.g.
+ * <pre>
+ * ext_plugin_exception_xlog_groups=esc,exp
+ * ext_plugin_exception_xlog_esc_agents=/cjescwas01/escprd1,/cjescwas02/escprd2,/cjescwasdev/*
+ * ext_plugin_exception_xlog_exp_obj_types=tomcat_exp*
+ * ext_plugin_exception_xlog_esc_telegram_enabled=true
+ * </pre>
+ * The first group whose agent name or object type pattern matches wins. The route of an objHash is resolved once and cached.
+ * The rules themselves are compiled in {@link TelegramPluginConfig}.
+ */
+public class XLogRouter {
+
+    /** Groups used when ext_plugin_exception_xlog_groups is not set. */
+    static final String[][] DEFAULT_GROUPS = {
+        { "esc", "/cjescwas01/escprd1,/cjescwas02/escprd2,/cjescwasdev/escdev" },
+        { "exp", "/cjwas03/expwas01,/cjwas04/expwas02" },
+        { "igap", "/cjwas03/igap_was3,/cjwas04/igap_was4" },
+        { "tms", "/cjwas03/tmsprd1-1,/cjwas03/tmsprd1-2,/cjwas04/tmsprd2-1,/cjwas04/tmsprd2-2" },
+        { "wise", "/gprtwas1/wise_prd11,/gprtwas1/wise_prd12,/gprtwas2/wise_prd21,/gprtwas2/wise_prd22" },
+        { "mpro", "/cjwas03/mproWas03,/cjwas04/mproWas04" },
+        { "cis", "/cjwas01/cis1,/cjwas02/cis2" },
+        { "ods", "/cjodswas01/odsprd01,/cjodswas02/odsprd02" },
+        { "cpl", "/cjpcplwas1/cplwas1,/cjpcplwas2/cplwas2" },
+        { "qms", "/cjwas03/qmswas1,/cjwas04/qmswas2" },
+        { "bmis", "/cjirisap1/bmis_was1,/cjemap/bmis_was2" },
+        { "iris", "/cjirisap1/iris_was1,/cjemap/iris_was2" },
+        { "pfls", "/pEacA1/PFLS_LIVE1,/pEacA2/PFLS_LIVE2" },
+        { "ams", "/cjwas03/amsprd_1,/cjwas04/amsprd_2" },
+        { "cms", "/cjwas03/cmsprd_1,/cjwas04/cmsprd_2" },
+        { "wings", "/cjwingswas01/WINGS_PRD1-1,/cjwingswas01/WINGS_PRD1-2,/cjwingswas02/WINGS_PRD2-1,/cjwingswas02/WINGS_PRD2-2" },
+        { "hanaro", "/CJHANAROWAS01/HANARO_PRD1,/CJHANAROWAS02/HANARO_PRD2" },
+        { "meta", "/cj-meta-app/cj-meta-app" },
+        { "fta", "/CJFPAAP/fta" },
+    };
+
+    public static class Route {
+        public final String group;
+        public final boolean enabled;
+        final String objType;
+
+        Route(String group, boolean enabled, String objType) {
+            this.group = group;
+            this.enabled = enabled;
+            this.objType = objType;
+        }
+    }
+
+    static class Rule {
+        final String group;
+        final WildcardMatcher agents;
+        final WildcardMatcher objTypes;
+        final boolean enabled;
+
+        Rule(String group, WildcardMatcher agents, WildcardMatcher objTypes, boolean enabled) {
+            this.group = group;
+            this.agents = agents;
+            this.objTypes = objTypes;
+            this.enabled = enabled;
+        }
+    }
+
+    static class Table {
+        final String signature;
+        final Rule[] rules;
+        final IntKeyLinkedMap<Route> cache;
+
+        Table(String signature, Rule[] rules, int maxCache) {
+            this.signature = signature;
+            this.rules = rules;
+            this.cache = new IntKeyLinkedMap<Route>().setMax(maxCache);
+        }
+    }
+
+    private static final Route DEFAULT_ROUTE = new Route("default", true, null);
+
+    private volatile Table table;
+
+    public XLogRouter(TelegramPluginConfig c) {
+        reload(c);
+    }
+
+    /**
+     * Route of the agent. Agents which match no group go to the default route,
+     * which is enabled by ext_plugin_exception_xlog_telegram_enabled alone.
+     */
+    public Route route(int objHash) {
+        Table t = table;
+        Route route = t.cache.get(objHash);
+        if (route != null) {
+            return route;
+        }
+
+        ObjectPack agent = AgentManager.getAgent(objHash);
+        if (agent == null || agent.objName == null) {
+            // not registered yet : do not cache so it is resolved again once the agent is known
+            return resolve(t.rules, AgentManager.getAgentName(objHash), null);
+        }
+
+        route = resolve(t.rules, agent.objName, agent.objType);
+        t.cache.put(objHash, route);
+        return route;
+    }
+
+    private static Route resolve(Rule[] rules, String name, String objType) {
+        for (Rule rule : rules) {
+            if (rule.agents.matches(name) || rule.objTypes.matches(objType)) {
+                return new Route(rule.group, rule.enabled, objType);
+            }
+        }
+        return objType == null ? DEFAULT_ROUTE : new Route(DEFAULT_ROUTE.group, true, objType);
+    }
+
+    /**
+     * Drop the cached route of an agent whose object type is changed. Called from object() on heartbeat.
+     */
+    public void refresh(int objHash, String objType) {
+        IntKeyLinkedMap<Route> cache = table.cache;
+        Route route = cache.get(objHash);
+        if (route != null && objType != null && !objType.equals(route.objType)) {
+            cache.remove(objHash);
+        }
+    }
+
+    /**
+     * Swap in the rules of a new configuration snapshot, dropping the cached routes if the rules are changed.
+     */
+    public void reload(TelegramPluginConfig c) {
+        Table t = table;
+        if (t == null || !t.signature.equals(c.xlogRouteSignature)) {
+            table = new Table(c.xlogRouteSignature, c.xlogRules, c.xlogRouteCacheSize);
+        }
+    }
+}